@@ -0,0 +1,53 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.Allocator;
+import src.IRList;
+import src.Renamer;
+
+// Allocator.allocate on a renamed block. Allocation only rewrites pr and
+// the spill table, so the same renamed IRList is reused
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+public class AllocateBench {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int ops;
+
+    @Param({"3", "4", "8", "16", "32", "64", "1024"})
+    public int k;
+
+    private IRList ir;
+    private Renamer renamed;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ir = Workloads.parse(Workloads.iloc(ops, Workloads.SEED));
+        renamed = Renamer.rename(ir);
+    }
+
+    @Benchmark
+    public IRList allocate(Instructions n) {
+        Allocator.allocate(ir, k, renamed);
+        n.iloc += ir.count;
+        return ir;
+    }
+}
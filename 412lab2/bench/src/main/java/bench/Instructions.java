@@ -0,0 +1,19 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Reports ILOC operations processed per second next to the invocation rate
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Instructions {
+    public long iloc;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        iloc = 0;
+    }
+}
@@ -0,0 +1,45 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.IRList;
+
+// Scanner + Parser.parse into an IRList
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+public class ParseBench {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int ops;
+
+    private byte[] text;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        text = Workloads.iloc(ops, Workloads.SEED);
+    }
+
+    @Benchmark
+    public IRList parse(Instructions n) throws IOException {
+        IRList ir = Workloads.parse(text);
+        n.iloc += ir.count;
+        return ir;
+    }
+}
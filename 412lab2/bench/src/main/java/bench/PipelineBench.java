@@ -0,0 +1,57 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.Allocator;
+import src.Emitter;
+import src.IRList;
+import src.Renamer;
+
+// What "412alloc k file" does: scan, parse, rename, allocate and emit
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+public class PipelineBench {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int ops;
+
+    @Param({"3", "4", "8", "16", "32", "64"})
+    public int k;
+
+    private byte[] text;
+    private Emitter out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        text = Workloads.iloc(ops, Workloads.SEED);
+        out = new Emitter(new Workloads.NullChannel());
+    }
+
+    @Benchmark
+    public IRList pipeline(Instructions n) throws IOException {
+        IRList ir = Workloads.parse(text);
+        Renamer renamed = Renamer.rename(ir);
+        Allocator.allocate(ir, k, renamed);
+        Allocator.printAllocated(ir, out);
+        out.flush();
+        n.iloc += ir.count;
+        return ir;
+    }
+}
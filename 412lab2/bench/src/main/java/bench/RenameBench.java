@@ -0,0 +1,46 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.IRList;
+import src.Renamer;
+
+// Renamer.rename on a parsed block; renaming only rewrites vr/nu, so the
+// same IRList can be renamed again every invocation
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+public class RenameBench {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int ops;
+
+    private IRList ir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ir = Workloads.parse(Workloads.iloc(ops, Workloads.SEED));
+    }
+
+    @Benchmark
+    public Renamer rename(Instructions n) {
+        n.iloc += ir.count;
+        return Renamer.rename(ir);
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.Scanner;
+import src.Token;
+
+// Scanner.nextToken over a whole block held in memory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+public class ScanBench {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int ops;
+
+    private byte[] text;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        text = Workloads.iloc(ops, Workloads.SEED);
+    }
+
+    @Benchmark
+    public int scan(Instructions n) throws IOException {
+        Scanner sc = Workloads.scanner(text);
+        int tokens = 0;
+        while (sc.nextToken().getCategory() != Token.TokenCategory.ENDFILE) tokens++;
+        n.iloc += ops;
+        return tokens;
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import src.Emitter;
+import src.IRList;
+import src.Parser;
+import src.Scanner;
+import src.Workload;
+
+// Reproducible inputs for the benchmarks: the same (ops, seed) always gives
+// the same ILOC text
+public final class Workloads {
+    public static final long SEED = 412;
+    public static final int MAX_LIVE = 32;
+
+    private Workloads() {}
+
+    // A block of `ops` operations from the ilocgen generator at its default
+    // mix, with MAX_LIVE values live at the peak
+    public static byte[] iloc(int ops, long seed) {
+        Workload w = new Workload();
+        w.ops = ops;
+        w.maxLive = MAX_LIVE;
+        w.seed = seed;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(ops * 20);
+        Emitter out = new Emitter(bytes);
+        try {
+            w.generate(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Scanner scanner(byte[] text) throws IOException {
+        return new Scanner(ByteBuffer.wrap(text), System.err);
+    }
+
+    public static IRList parse(byte[] text) throws IOException {
+        Parser p = new Parser(scanner(text));
+        IRList ir = p.parse();
+        if (p.hadErrors()) throw new IllegalStateException("generated ILOC did not parse");
+        return ir;
+    }
+
+    // Swallows everything, so emitting costs only the encoding
+    public static final class NullChannel implements WritableByteChannel {
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+        public boolean isOpen() { return true; }
+        public void close() {}
+    }
+}
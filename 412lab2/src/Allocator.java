@@ -1,147 +1,433 @@
 package src;
 
-import java.util.ArrayDeque;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public final class Allocator {
 
-    public Allocator() {}
-
     private static final int SPILL_ADDR_BASE = 32768;
-    private static final int WORD = 4;
-
-    // Primary allocation function
-    public static void allocate(IRList ir, int k, int maxVR, int maxLive) {
-        if (ir == null || ir.head == null) return;
-
-        // If k < maxLive, we need to reserve a PR for spill address calculations
-        final boolean maySpill = (maxLive > k);
-        final int addrPR = maySpill ? (k - 1) : -1; // PR used for spill addresses
-        final int usableK = maySpill ? (k - 1) : k; // Usable PRs for allocation
-        if (usableK <= 0) throw new IllegalArgumentException("k too small for allocation");
+    static final int WORD = 4;
+    // Parallel mode hands regions to workers in groups of at least this many ops
+    private static final int MIN_TASK_OPS = 1 << 14;
+    // -exact searches regions up to this many ops, longer ones keep the heuristic
+    static final int EXACT_MAX_OPS = 4096;
+
+    // Per-VR state, shared by every worker. Regions never share a VR, so
+    // concurrent workers touch disjoint entries.
+    private static final class VRState {
+        final int[] vr2pr;
+        final int[] vrSpillAddr;
+        // Per-VR state for spill costs & rematerialization
+        final boolean[] vrRemat;   // true if defined by LOADI
+        final int[] vrRematImm;    // the LOADI immediate
+        final byte[] vrCleanState; // 0=unknown, 1=clean (in spill slot or remat), 2=dirty
+        // Op that loaded the VR from a loadI constant address, when nothing
+        // may store there before its last use; -1 otherwise
+        final int[] vrLoadedAt;
+        final int spillBase;       // address of spill slot 0
+        // The spill area could not go above every loadI or output constant,
+        // so the block may use those addresses too
+        final boolean spillMayAlias;
+
+        VRState(int maxVR, int spillBase, boolean spillMayAlias) {
+            this.spillBase = spillBase;
+            this.spillMayAlias = spillMayAlias;
+            int n = Math.max(1, maxVR);
+            vr2pr = new int[n];
+            Arrays.fill(vr2pr, -1);
+            vrSpillAddr = new int[n];
+            Arrays.fill(vrSpillAddr, -1);
+            vrRemat = new boolean[n];
+            vrRematImm = new int[n];
+            vrCleanState = new byte[n];
+            vrLoadedAt = new int[n];
+            Arrays.fill(vrLoadedAt, -1);
+        }
+    }
 
-        // Initialize primitive arrays for mappings with null values.
-        final int[] vr2pr = new int[Math.max(1, maxVR)];
-        Arrays.fill(vr2pr, -1);
-        final int[] pr2vr = new int[usableK];
+    private final IRList ir;
+    private final int k;
+    private final VRState vs;
+    private final SpillCode spill;
+
+    // Per-worker PR state. Every PR is free again at a region start
+    private final int[] pr2vr;
+    private final int[] prNU;
+    private final long[] free;     // bit pr is set while PR pr holds nothing
+    private int freeWord;          // no free bit in any word below this one
+    private final int[] markedAt;  // PRs holding the current op's operands carry the current stamp
+    private int stamp;
+    // Occupied PRs as a max-heap on prNU, the farthest next use on top
+    private final int[] heap;
+    private final int[] heapPos;   // index of each PR in heap, -1 when free
+    private int heapSize;
+    private final int[] walk;      // scratch stack for chooseVictim
+    private boolean maySpill;
+    private int addrPR;  // PR used for spill addresses
+    private int addrHolds; // spill address in addrPR, -1 if none yet
+    private int usableK; // Usable PRs for allocation
+    // Last op storing to each loadI constant address, and to any other address
+    private final IntMap lastStoreTo = new IntMap();
+    private int lastUnknownStore = -1;
+    private final SpillSlots slots = new SpillSlots();
+    // Victims chosen by SpillSearch for the current region, null to use chooseVictim
+    private final long exactBudget;
+    private int[] plan;
+    private int planPos;
+
+    // Counters for -stats, see Stats
+    private long spillStores;
+    private long reloads;
+    private long memReloads;
+    private long remats;
+    private long addrLoadIs;
+    private long addrReused;
+    private final long[] victims = new long[3];  // by class: dirty, clean, remat
+    private long searched, proved, improved;     // regions -exact looked at
+    private long bytes;                          // allocated by this worker
+
+    private Allocator(IRList ir, int k, VRState vs, SpillCode spill, long exactBudget) {
+        this.ir = ir;
+        this.k = k;
+        this.exactBudget = exactBudget;
+        this.vs = vs;
+        this.spill = spill;
+        this.pr2vr = new int[k];
+        this.prNU = new int[k];
+        this.free = new long[(k + 63) >>> 6];
+        this.markedAt = new int[k];
+        this.heap = new int[k];
+        this.heapPos = new int[k];
+        this.walk = new int[k];
         Arrays.fill(pr2vr, -1);
-        final int[] prNU  = new int[usableK];
         Arrays.fill(prNU, Integer.MAX_VALUE);
+        Arrays.fill(heapPos, -1);
+        for (int pr = 0; pr < k; pr++) putFree(pr);
+    }
 
-        // Free list of available PRs
-        final Deque<Integer> free = new ArrayDeque<>(usableK);
-        for (int pr = usableK - 1; pr >= 0; --pr) free.push(pr);
+    // Primary allocation function. The block is allocated region by region,
+    // where a region ends at a point with no live VR (see Renamer)
+    public static void allocate(IRList ir, int k, Renamer rn) {
+        allocate(ir, k, rn, 1, null);
+    }
 
-        final int[] vrSpillAddr = new int[Math.max(1, maxVR)];
-        Arrays.fill(vrSpillAddr, -1);
+    // Same result as allocate(), but groups of regions are allocated
+    // concurrently on `threads` workers and their spill code stitched back in order
+    public static void allocate(IRList ir, int k, Renamer rn, int threads) {
+        allocate(ir, k, rn, threads, null);
+    }
 
-        // Per-VR state for spill costs & rematerialization
-        final boolean[] vrRemat = new boolean[Math.max(1, maxVR)];   // true if defined by LOADI
-        final int[] vrRematImm = new int[Math.max(1, maxVR)];    // the LOADI immediate
-        final byte[] vrCleanState = new byte[Math.max(1, maxVR)]; // 0=unknown, 1=clean (in spill slot or remat), 2=dirty
+    // As above, adding the allocator counters to stats when it isn't null
+    public static void allocate(IRList ir, int k, Renamer rn, int threads, Stats stats) {
+        allocate(ir, k, rn, threads, stats, 0);
+    }
+
+    // As above. With exactBudget > 0, each region that spills and has at most
+    // EXACT_MAX_OPS ops takes its victims from a SpillSearch of that many
+    // nodes, when the search finds a cheaper plan than chooseVictim
+    public static void allocate(final IRList ir, final int k, final Renamer rn, int threads, final Stats stats,
+                                final long exactBudget) {
+        if (ir == null || ir.count == 0) return;
+        ir.pr = new int[3 * ir.count];
+        final int maxConst = maxConstant(ir);
+        final int base = spillBase(maxConst, rn.maxLive);
+        final VRState vs = new VRState(rn.vrCount, base, base <= maxConst);
+        if (threads <= 1 || rn.regions <= 1) {
+            ir.spill = new SpillCode();
+            Allocator a = new Allocator(ir, k, vs, ir.spill, exactBudget);
+            a.allocateRegions(rn, 0, rn.regions);
+            if (stats != null) a.addTo(stats);
+            return;
+        }
+
+        // Cut the region list into tasks of roughly equal op counts
+        final int target = Math.max(MIN_TASK_OPS, ir.count / (threads * 4));
+        final List<Callable<Allocator>> tasks = new ArrayList<>();
+        int first = 0;
+        while (first < rn.regions) {
+            int last = first + 1;
+            while (last < rn.regions && rn.regionStart[last] - rn.regionStart[first] < target) last++;
+            final int lo = first, hi = last;
+            tasks.add(new Callable<Allocator>() {
+                public Allocator call() {
+                    long before = (stats == null) ? 0 : Stats.threadBytes();
+                    Allocator a = new Allocator(ir, k, vs, new SpillCode(), exactBudget);
+                    a.allocateRegions(rn, lo, hi);
+                    if (stats != null) a.bytes = Stats.threadBytes() - before;
+                    return a;
+                }
+            });
+            first = last;
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final SpillCode merged = new SpillCode();
+        try {
+            for (Future<Allocator> f : pool.invokeAll(tasks)) {
+                Allocator a = f.get();
+                merged.addAll(a.spill);
+                if (stats != null) a.addTo(stats);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("allocation interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            throw new IllegalStateException(c);
+        } finally {
+            pool.shutdown();
+        }
+        ir.spill = merged;
+    }
+
+    private void addTo(Stats s) {
+        s.spillStores += spillStores;
+        s.reloads += reloads;
+        s.memReloads += memReloads;
+        s.remats += remats;
+        s.addrLoadIs += addrLoadIs;
+        s.addrReused += addrReused;
+        s.inserted += spill.count;
+        for (int c = 0; c < victims.length; c++) s.victims[c] += victims[c];
+        s.searched += searched;
+        s.proved += proved;
+        s.improved += improved;
+        s.addBytes(Stats.ALLOCATE, bytes);
+        s.spillBase = vs.spillBase;
+        s.spillMayAlias = vs.spillMayAlias;
+        if (slots.most > s.spillSlots) s.spillSlots = slots.most;
+    }
+
+    // Largest loadI or output constant in the block, -1 without any. An
+    // output's constant is an address it reads, so it counts too
+    static int maxConstant(IRList ir) {
+        int maxConst = -1;
+        for (int i = 0; i < ir.count; i++) {
+            final int o = ir.opc[i];
+            if ((o == Op.LOADI || o == Op.OUTPUT) && ir.sr[3 * i] > maxConst) maxConst = ir.sr[3 * i];
+        }
+        return maxConst;
+    }
+
+    // Spill slots go above every address the block names with a loadI or
+    // output constant, and never below SPILL_ADDR_BASE. No more than maxLive values
+    // are ever spilled at once. If that many slots would not fit above the
+    // constants, no base is safe: the base stays at SPILL_ADDR_BASE, at or
+    // below maxConst, and callers must assume spill slots alias the block's
+    // own addresses
+    static int spillBase(int maxConst, int maxLive) {
+        long base = Math.max(SPILL_ADDR_BASE, ((long) maxConst + 2 * WORD - 1) & -WORD);
+        if (base + (long) WORD * maxLive > Integer.MAX_VALUE) return SPILL_ADDR_BASE;
+        return (int) base;
+    }
 
-        final boolean[] marked = new boolean[usableK];
+    // Allocate regions [lo, hi) of the renamed block
+    private void allocateRegions(Renamer rn, int lo, int hi) {
+        for (int r = lo; r < hi; r++) {
+            final int end = (r + 1 < rn.regions) ? rn.regionStart[r + 1] : ir.count;
+            startRegion(rn.regionMaxLive[r]);
+            if (maySpill && !vs.spillMayAlias) constantLoads(rn.regionStart[r], end);
+            if (exactBudget > 0 && maySpill && end - rn.regionStart[r] <= EXACT_MAX_OPS) {
+                SpillSearch search = new SpillSearch(ir, rn.regionStart[r], end, usableK, vs.vrLoadedAt);
+                plan = search.plan(exactBudget);
+                planPos = 0;
+                searched++;
+                if (search.complete) proved++;
+                if (plan != null) improved++;
+            }
+            allocateRange(rn.regionStart[r], end);
+            plan = null;
+        }
+    }
 
-        // Main allocation loop, iteratve over each Op node
-        for (Op n = ir.head; n != null; n = n.next) {
-            Arrays.fill(marked, false);
+    // Find the loads from a loadI constant address whose value memory still
+    // holds at their last use: no store to that address, nor to one that
+    // isn't a loadI constant, comes in between. Evicting such a value needs
+    // no store, it is loaded again from where it came from. Spill stores
+    // can't alias, the spill area sits above every constant; when it can't,
+    // this is not run and every loaded value is spilled as usual.
+    // Op indices only grow, so stores seen in earlier regions never count
+    private void constantLoads(int from, int to) {
+        final byte[] opc = ir.opc;
+        final int[] vr = ir.vr;
+        final boolean[] vrRemat = vs.vrRemat;
+        final int[] vrLoadedAt = vs.vrLoadedAt;
+        for (int i = from; i < to; i++) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            for (int slot : Op.uses(o)) {
+                final int v = vr[b + slot];
+                final int d = vrLoadedAt[v];
+                if (d < 0) continue;
+                final int c = vs.vrRematImm[vr[3 * d]];
+                if (lastUnknownStore > d || lastStoreTo.get(c, -1) > d) vrLoadedAt[v] = -1;
+            }
+            switch (o) {
+                case Op.LOADI: // allocateRange sets these again at the def
+                    vrRemat[vr[b + 2]] = true;
+                    vs.vrRematImm[vr[b + 2]] = ir.sr[b];
+                    break;
+                case Op.LOAD:
+                    if (vrRemat[vr[b]]) vrLoadedAt[vr[b + 2]] = i;
+                    break;
+                case Op.STORE:
+                    if (vrRemat[vr[b + 2]]) lastStoreTo.put(vs.vrRematImm[vr[b + 2]], i);
+                    else lastUnknownStore = i;
+                    break;
+                default:
+                    if (Op.isDef(o)) vrRemat[vr[b + 2]] = false;
+                    break;
+            }
+        }
+    }
+
+    // No VR is live here, so every PR is already free and the lowest free
+    // PR goes first: the region allocates the same no matter who runs it.
+    // Only the reserved address PR and the spill area change
+    private void startRegion(int maxLive) {
+        // If k < maxLive, we need to reserve a PR for spill address calculations
+        maySpill = (maxLive > k);
+        addrPR = maySpill ? (k - 1) : -1;
+        usableK = maySpill ? (k - 1) : k;
+        if (usableK <= 0) throw new IllegalArgumentException("k too small for allocation");
+
+        while (heapSize > 0) { // nothing should be left, but never carry a PR over
+            int pr = heap[0];
+            pr2vr[pr] = -1;
+            prNU[pr] = Integer.MAX_VALUE;
+            unheap(pr);
+            putFree(pr);
+        }
+        if (maySpill) free[(k - 1) >>> 6] &= ~(1L << (k - 1));
+        else putFree(k - 1);
+        addrHolds = -1;
+    }
+
+    // Main allocation loop, iteratve over each op in [from, to)
+    private void allocateRange(int from, int to) {
+        final byte[] opc = ir.opc;
+        final int[] vr = ir.vr;
+        final int[] nu = ir.nu;
+        final int[] prs = ir.pr;
+        final int[] vr2pr = vs.vr2pr;
+        final boolean[] vrRemat = vs.vrRemat;
+        final byte[] vrCleanState = vs.vrCleanState;
+
+        for (int i = from; i < to; i++) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            final int[] useSlots = Op.uses(o);
+            nextStamp();
 
             //  Allocate PRs for uses
-            for (int slot : useSlotIdx(n)) {
-                final int v = n.vr[slot];
+            for (int slot : useSlots) {
+                final int v = vr[b + slot];
                 if (v < 0) continue;
                 int pr = (v < vr2pr.length) ? vr2pr[v] : -1;
 
                 if (pr < 0) {
-                    pr = getAPR(v, n.nu[slot], usableK, free, marked, prNU, pr2vr, vr2pr,
-                                ir, n, addrPR, maySpill, vrSpillAddr, vrRemat, vrCleanState, vrRematImm);
+                    pr = getAPR(v, nu[b + slot], i);
                     //  Restore: rematerialize if possible; else load from our spill slot
                     if (vrRemat[v]) {
-                        insertBefore(ir, n, mkLoadI(n.line, vrRematImm[v], pr));
+                        remats++;
+                        insertLoadI(i, vs.vrRematImm[v], pr);
                         vrCleanState[v] = 2; // dirty (live in PR, not yet copied to spill slot)
+                    } else if (vs.vrLoadedAt[v] >= 0) { // memory still holds it
+                        reloads++;
+                        memReloads++;
+                        loadAddr(i, vs.vrRematImm[vr[3 * vs.vrLoadedAt[v]]]);
+                        insertLoad(i, addrPR, pr);
+                        vrCleanState[v] = 1;
                     } else {
                         // normal restore
-                        ensureSpillAddr(ir, v, vrSpillAddr);
-                        insertBefore(ir, n, mkLoadI(n.line, vrSpillAddr[v], addrPR));
-                        insertBefore(ir, n, mkLoad(n.line, addrPR, pr));
+                        reloads++;
+                        ensureSpillAddr(v);
+                        loadAddr(i, vs.vrSpillAddr[v]);
+                        insertLoad(i, addrPR, pr);
                         vrCleanState[v] = 1; // now also has a clean copy in slot
                     }
                 }
                 // Assign allocated PR
-                n.pr[slot] = pr;
-                marked[pr] = true;
-                prNU[pr] = n.nu[slot];
+                prs[b + slot] = pr;
+                markedAt[pr] = stamp;
+                setNU(pr, nu[b + slot]);
             }
 
             // Free PRs whose use is last here
-            for (int slot : useSlotIdx(n)) {
-                final int v = n.vr[slot];
+            for (int slot : useSlots) {
+                final int v = vr[b + slot];
                 if (v < 0) continue;
                 // If this is the last use, free the PR
-                if (n.nu[slot] == Integer.MAX_VALUE) {
-                    final int pr = vr2pr[v];
-                    if (pr >= 0 && pr2vr[pr] == v) {
-                        vr2pr[v] = -1;
-                        pr2vr[pr] = -1;
-                        prNU[pr] = Integer.MAX_VALUE;
-                        free.push(pr);
-                    }
-                }
+                if (nu[b + slot] == Integer.MAX_VALUE) release(v);
             }
 
-            Arrays.fill(marked, false);
+            nextStamp();
 
             // Allocate PR for DEF (slot 2 for def opcodes)
-            if (isDef(n)) {
-                final int v = n.vr[2];
+            if (Op.isDef(o)) {
+                final int v = vr[b + 2];
                 if (v >= 0) {
                     int pr = vr2pr[v];
                     if (pr < 0) {
-                        pr = getAPR(v, n.nu[2], usableK, free, marked, prNU, pr2vr, vr2pr,
-                                    ir, n, addrPR, maySpill, vrSpillAddr, vrRemat, vrCleanState, vrRematImm);
+                        pr = getAPR(v, nu[b + 2], i);
                     }
                     // Assign allocated PR
-                    n.pr[2] = pr;
-                    marked[pr] = true;
-                    prNU[pr] = n.nu[2];
+                    prs[b + 2] = pr;
+                    markedAt[pr] = stamp;
+                    setNU(pr, nu[b + 2]);
 
                     // Track defining opcode for cost model
-                    if (n.opc == Op.Opcode.LOADI) {
+                    if (o == Op.LOADI) {
                         vrRemat[v] = true;
-                        vrRematImm[v] = n.sr[0];
+                        vs.vrRematImm[v] = ir.sr[b];
                         vrCleanState[v] = 2; // result produced in PR
+                    } else if (vs.vrLoadedAt[v] >= 0) { // a copy stays at the load's address
+                        vrRemat[v] = false;
+                        vrCleanState[v] = 1;
                     } else { // Arithmetic or load result: treat as dirty until (if ever) we spill to slot
                         vrRemat[v] = false;
                         vrCleanState[v] = 2;
                     }
+                    // Never used: the PR is free again right after the op
+                    if (nu[b + 2] == Integer.MAX_VALUE) release(v);
                 }
             }
         }
-        printAllocated(ir); // Print completed allocation
     }
 
-    // Allocate a physical register for virtual register vr at its next use nu
-    private static int getAPR(
-            final int vr, final int nu, final int usableK,
-            final Deque<Integer> free, final boolean[] marked,
-            final int[] prNU, final int[] pr2vr, final int[] vr2pr,
-            final IRList ir, final Op at,
-            final int addrPR, final boolean maySpill, final int[] vrSpillAddr,
-            final boolean[] vrRemat, final byte[] vrCleanState, final int[] vrRematImm) {
-
-        Integer pick = null;
-        while (!free.isEmpty()) {
-            int cand = free.pop();
-            if (!marked[cand]) { pick = cand; break; }
+    // v is past its last use: return its PR to the free set and its spill
+    // slot, if it has one, to the slot pool
+    private void release(int v) {
+        if (vs.vrSpillAddr[v] >= 0) freeSlot(v);
+        final int pr = vs.vr2pr[v];
+        if (pr >= 0 && pr2vr[pr] == v) {
+            vs.vr2pr[v] = -1;
+            pr2vr[pr] = -1;
+            prNU[pr] = Integer.MAX_VALUE;
+            unheap(pr);
+            putFree(pr);
         }
-        int pr;
-        if (pick != null) {
-            pr = pick;
-        } else {
-            pr = chooseVictim(usableK, marked, prNU, pr2vr, vrRemat, vrCleanState);
+    }
+
+    // Allocate a physical register for virtual register vr at its next use nu
+    private int getAPR(final int vr, final int nu, final int at) {
+        final int[] vr2pr = vs.vr2pr;
+        final boolean[] vrRemat = vs.vrRemat;
+        final byte[] vrCleanState = vs.vrCleanState;
+
+        int pr = takeFree();
+        if (pr < 0) {
+            pr = (plan != null) ? planned() : chooseVictim();
             final int victimVR = pr2vr[pr];
             if (victimVR >= 0) {
+                victims[vrRemat[victimVR] ? 2 : vrCleanState[victimVR] == 1 ? 1 : 0]++;
                 // Spill policy
                 if (vrRemat[victimVR]) {
                     // nothing to store
@@ -150,41 +436,64 @@ public final class Allocator {
                     // already clean: nothing to do
                 } else { // dirty: store to spill slot
                     if (!maySpill) throw new IllegalStateException("Unexpected spill with maySpill=false");
-                    ensureSpillAddr(ir, victimVR, vrSpillAddr);
-                    insertBefore(ir, at, mkLoadI(at.line, vrSpillAddr[victimVR], addrPR));
-                    insertBefore(ir, at, mkStore(at.line, pr, addrPR));
+                    spillStores++;
+                    ensureSpillAddr(victimVR);
+                    loadAddr(at, vs.vrSpillAddr[victimVR]);
+                    insertStore(at, pr, addrPR);
                     vrCleanState[victimVR] = 1; // now has a clean spill copy
                 }
                 vr2pr[victimVR] = -1;
                 pr2vr[pr] = -1;
-                prNU[pr] = Integer.MAX_VALUE;
             }
         }
         // Assign new mapping
         vr2pr[vr] = pr;
         pr2vr[pr] = vr;
-        prNU[pr] = nu;
+        setNU(pr, nu);
         return pr;
     }
 
     // Prefer farthest next-use, but if multiple PRs are within 1 of the max NU,
-    // break ties by spill-cost class: REMAT > CLEAN > DIRTY, then by NU.
-    private static int chooseVictim(final int usableK, final boolean[] marked, final int[] prNU,
-                                    final int[] pr2vr, final boolean[] vrRemat, final byte[] vrCleanState) {
+    // break ties by spill-cost class: REMAT > CLEAN > DIRTY, then by NU, then
+    // by the lower PR. Only gets here when every usable PR is taken, so all of
+    // them are in the heap; at most two are marked and at most two share a
+    // next use, so both walks below stay near the top.
+    private int chooseVictim() {
+        final boolean[] vrRemat = vs.vrRemat;
+        final byte[] vrCleanState = vs.vrCleanState;
+        final int DELTA = 1; // consider "near ties" within 1
+
+        // Farthest unmarked next use: the first unmarked PR on each path
+        // down from the top bounds everything below it
         int maxNU = -1;
-        for (int pr = 0; pr < usableK; pr++) {
-            if (marked[pr]) continue;
-            if (prNU[pr] > maxNU) maxNU = prNU[pr];
+        int sp = 0;
+        if (heapSize > 0) walk[sp++] = 0;
+        while (sp > 0) {
+            int h = walk[--sp];
+            int pr = heap[h];
+            if (markedAt[pr] != stamp) {
+                if (prNU[pr] > maxNU) maxNU = prNU[pr];
+                continue;
+            }
+            if (2 * h + 1 < heapSize) walk[sp++] = 2 * h + 1;
+            if (2 * h + 2 < heapSize) walk[sp++] = 2 * h + 2;
         }
-        final int DELTA = 1; // consider “near ties” within 1
+        if (maxNU < 0) throw new IllegalStateException("no PR to spill");
+
+        // Every unmarked PR within DELTA of it
+        final long floor = (long) maxNU - DELTA;
         int bestPR = -1;
         int bestClass = -1;
         int bestNU = -1;
-
-        for (int pr = 0; pr < usableK; pr++) {
-            if (marked[pr]) continue;
+        walk[sp++] = 0;
+        while (sp > 0) {
+            int h = walk[--sp];
+            int pr = heap[h];
             final int nu = prNU[pr];
-            if (nu + DELTA < maxNU) continue;
+            if (nu < floor) continue; // and so is all of its subtree
+            if (2 * h + 1 < heapSize) walk[sp++] = 2 * h + 1;
+            if (2 * h + 2 < heapSize) walk[sp++] = 2 * h + 2;
+            if (markedAt[pr] == stamp) continue;
 
             final int v = pr2vr[pr];
             int cls = 0;
@@ -193,133 +502,186 @@ public final class Allocator {
                 else if (vrCleanState[v] == 1) cls = 1;
                 else cls = 0;
             }
-            if (cls > bestClass || (cls == bestClass && nu > bestNU)) {
+            if (cls > bestClass || (cls == bestClass && (nu > bestNU || (nu == bestNU && pr < bestPR)))) {
                 bestClass = cls;
                 bestNU = nu;
                 bestPR = pr;
             }
         }
-        if (bestPR >= 0) return bestPR;
+        return bestPR;
+    }
+
+    // PR of the next victim in the search's plan
+    private int planned() {
+        final int pr = (planPos < plan.length) ? vs.vr2pr[plan[planPos++]] : -1;
+        if (pr < 0 || markedAt[pr] == stamp) throw new IllegalStateException("spill plan out of step");
+        return pr;
+    }
 
-        // Fallback, farthest-NU if something odd happened
-        bestPR = -1; bestNU = -1;
-        for (int pr = 0; pr < usableK; pr++) {
-            if (marked[pr]) continue;
-            if (prNU[pr] > bestNU) { bestNU = prNU[pr]; bestPR = pr; }
+    // A new op: forget which PRs the previous one marked
+    private void nextStamp() {
+        if (++stamp == Integer.MAX_VALUE) {
+            Arrays.fill(markedAt, 0);
+            stamp = 1;
         }
-        return (bestPR >= 0) ? bestPR : 0;
     }
 
-    // IRList helpers
-    private static void insertBefore(IRList ir, Op at, Op neo) {
-        neo.next = at;
-        neo.prev = at.prev;
-        if (at.prev != null) at.prev.next = neo;
-        at.prev = neo;
-        if (ir.head == at) ir.head = neo;
-        ir.count++;
+    // Lowest free PR, taken out of the free set, or -1 if there is none
+    private int takeFree() {
+        for (int w = freeWord; w < free.length; w++) {
+            final long bits = free[w];
+            if (bits != 0) {
+                free[w] = bits & (bits - 1);
+                freeWord = w;
+                return (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        freeWord = free.length;
+        return -1;
     }
 
-    private static void ensureSpillAddr(IRList ir, int v, int[] vrSpillAddr) {
-        if (vrSpillAddr[v] < 0) {
-            vrSpillAddr[v] = SPILL_ADDR_BASE + nextSpillAddrDelta();
+    private void putFree(int pr) {
+        final int w = pr >>> 6;
+        free[w] |= 1L << pr;
+        if (w < freeWord) freeWord = w;
+    }
+
+    // Set the next use of PR pr, adding it to the heap if it was free
+    private void setNU(int pr, int nu) {
+        int h = heapPos[pr];
+        if (h < 0) {
+            h = heapSize++;
+            heap[h] = pr;
+            heapPos[pr] = h;
+            prNU[pr] = nu;
+            siftUp(h);
+            return;
         }
+        final int old = prNU[pr];
+        prNU[pr] = nu;
+        if (nu > old) siftUp(h);
+        else if (nu < old) siftDown(h);
     }
 
-    private static int spillCursor = 0;
-    private static int nextSpillAddrDelta() {
-        int delta = spillCursor;
-        spillCursor += WORD;
-        return delta;
+    private void unheap(int pr) {
+        final int h = heapPos[pr];
+        if (h < 0) return;
+        heapPos[pr] = -1;
+        final int last = heap[--heapSize];
+        if (h == heapSize) return;
+        heap[h] = last;
+        heapPos[last] = h;
+        siftUp(h);
+        siftDown(heapPos[last]);
     }
 
-    private static Op mkLoadI(int line, int imm, int dstPR) {
-        Op o = new Op(line, Op.Opcode.LOADI);
-        o.sr[0] = imm;
-        o.pr[2] = dstPR;
-        return o;
+    private void siftUp(int h) {
+        final int pr = heap[h];
+        final int key = prNU[pr];
+        while (h > 0) {
+            final int parent = (h - 1) >>> 1;
+            final int p = heap[parent];
+            if (prNU[p] >= key) break;
+            heap[h] = p;
+            heapPos[p] = h;
+            h = parent;
+        }
+        heap[h] = pr;
+        heapPos[pr] = h;
     }
 
-    private static Op mkLoad(int line, int addrPR, int dstPR) {
-        Op o = new Op(line, Op.Opcode.LOAD);
-        o.pr[0] = addrPR;
-        o.pr[2] = dstPR;
-        return o;
+    private void siftDown(int h) {
+        final int pr = heap[h];
+        final int key = prNU[pr];
+        while (true) {
+            int c = 2 * h + 1;
+            if (c >= heapSize) break;
+            if (c + 1 < heapSize && prNU[heap[c + 1]] > prNU[heap[c]]) c++;
+            final int child = heap[c];
+            if (prNU[child] <= key) break;
+            heap[h] = child;
+            heapPos[child] = h;
+            h = c;
+        }
+        heap[h] = pr;
+        heapPos[pr] = h;
     }
 
-    private static Op mkStore(int line, int srcPR, int addrPR) {
-        Op o = new Op(line, Op.Opcode.STORE);
-        o.pr[0] = srcPR;
-        o.pr[2] = addrPR;
-        return o;
+    // Spill code helpers, each op lands just before op `at`
+    private void insertLoadI(int at, int imm, int dstPR) {
+        spill.add(at, Op.LOADI, imm, dstPR);
     }
 
-    // Op shape helpers
-    private static boolean isDef(Op n) {
-        switch (n.opc) {
-            case ADD: case SUB: case MULT: case LSHIFT: case RSHIFT:
-            case LOAD: case LOADI:  return true;
-            default:                return false;
+    // Point addrPR at a spill slot, or at the address a clean load came
+    // from. Only spill code writes addrPR, so back-to-back spill traffic on
+    // one address needs a single loadI. No other PR can already hold a slot
+    // address, spill slots sit above every loadI constant in the block, and
+    // this ILOC has no base+offset load or store to reach a neighbouring slot
+    // from it
+    private void loadAddr(int at, int addr) {
+        if (addrHolds == addr) {
+            addrReused++;
+            return;
         }
+        insertLoadI(at, addr, addrPR);
+        addrHolds = addr;
+        addrLoadIs++;
     }
 
-    private static int[] useSlotIdx(Op n) {
-        switch (n.opc) {
-            case ADD: case SUB: case MULT: case LSHIFT: case RSHIFT:
-                return new int[]{0, 1};
-            case LOAD:
-                return new int[]{0};
-            case STORE:
-                return new int[]{0, 2};
-            default:
-                return new int[0];
+    private void insertLoad(int at, int addrPR, int dstPR) {
+        spill.add(at, Op.LOAD, addrPR, dstPR);
+    }
+
+    private void insertStore(int at, int srcPR, int addrPR) {
+        spill.add(at, Op.STORE, srcPR, addrPR);
+    }
+
+    // Give v the lowest free spill slot
+    private void ensureSpillAddr(int v) {
+        if (vs.vrSpillAddr[v] >= 0) return;
+        vs.vrSpillAddr[v] = vs.spillBase + slots.take() * WORD;
+    }
+
+    private void freeSlot(int v) {
+        slots.free((vs.vrSpillAddr[v] - vs.spillBase) / WORD);
+        vs.vrSpillAddr[v] = -1;
+    }
+
+    // The allocated block with its spill code as a plain IRList, physical
+    // registers in sr and nops left out
+    public static IRList flatten(IRList ir) {
+        final SpillCode spill = ir.spill;
+        final int[] prs = ir.pr;
+        final IRList flat = new IRList(ir.count + spill.count);
+        int j = 0;
+        for (int i = 0; i < ir.count; i++) {
+            for (; j < spill.count && spill.at[j] == i; j++) {
+                flat.append(spill.opc[j], ir.line[i], spill.s0[j], 0, spill.s2[j]);
+            }
+            final int b = 3 * i;
+            final int o = ir.opc[i];
+            if (o == Op.NOP) continue;
+            final int s0 = (o == Op.LOADI || o == Op.OUTPUT) ? ir.sr[b] : prs[b];
+            flat.append(o, ir.line[i], s0, prs[b + 1], prs[b + 2]);
         }
+        return flat;
     }
 
-    // Walk over IRList and print allocated code
-    private static void printAllocated(IRList ir) {
-        for (Op n = ir.head; n != null; n = n.next) {
-            switch (n.opc) {
-                case LOADI: {
-                    int x = n.sr[0];
-                    int d = n.pr[2];
-                    System.out.println("loadI " + x + " => r" + d);
-                    break;
-                }
-                case LOAD: {
-                    int a = n.pr[0];
-                    int d = n.pr[2];
-                    System.out.println("load r" + a + " => r" + d);
-                    break;
-                }
-                case STORE: {
-                    int s = n.pr[0];
-                    int a = n.pr[2];
-                    System.out.println("store r" + s + " => r" + a);
-                    break;
-                }
-                case ADD: case SUB: case MULT: case LSHIFT: case RSHIFT: {
-                    int s0 = n.pr[0], s1 = n.pr[1], d = n.pr[2];
-                    String op;
-                    switch (n.opc) {
-                        case ADD: op = "add"; break;
-                        case SUB: op = "sub"; break;
-                        case MULT: op = "mult"; break;
-                        case LSHIFT: op = "lshift"; break;
-                        case RSHIFT: op = "rshift"; break;
-                        default: op = "???";
-                    }
-                    System.out.println(op + " r" + s0 + ", r" + s1 + " => r" + d);
-                    break;
-                }
-                case OUTPUT: {
-                    System.out.println("output " + n.sr[0]);
-                    break;
-                }
-                case NOP: {
-                    break;
-                }
+    // Walk over IRList and print allocated code, splicing in the spill code
+    public static void printAllocated(IRList ir, Emitter out) throws IOException {
+        final SpillCode spill = ir.spill;
+        final int[] prs = ir.pr;
+        int j = 0;
+        for (int i = 0; i < ir.count; i++) {
+            for (; j < spill.count && spill.at[j] == i; j++) {
+                out.op(spill.opc[j], spill.s0[j], 0, spill.s2[j]);
             }
+            final int b = 3 * i;
+            final int o = ir.opc[i];
+            if (o == Op.NOP) continue; // nothing to allocate, dropped from the output
+            // loadI and output print their constant from the source slot
+            final int s0 = (o == Op.LOADI || o == Op.OUTPUT) ? ir.sr[b] : prs[b];
+            out.op(o, s0, prs[b + 1], prs[b + 2]);
         }
     }
 }
@@ -0,0 +1,220 @@
+package src;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Output cache for -cache <dir>, shared by every process pointed at it.
+// An entry is the printed output of one compile, in <dir>/<key>.iloc, where
+// key is the SHA-256 of the compiler's own class files, the options that
+// change the output and the parsed ops (opcodes and operands only, so
+// layout, comments and line numbers don't count). Any rebuild that changes
+// the compiler so changes every key, and a directory shared by several
+// builds keeps their entries apart.
+//
+// Entries are written to a private temp file and renamed into place, so a
+// reader sees a whole entry or none. A hit refreshes the entry's mtime, and
+// once the directory grows past its limit the least recently used entries
+// are deleted. Deleting an entry another process is reading is harmless;
+// one that is gone by the time it is opened is a miss.
+public final class Cache {
+    // Bump when the key's layout changes; changes to the output are covered
+    // by the digest of the class files
+    static final String VERSION = "412alloc-cache-2";
+    private static final String SUFFIX = ".iloc";
+
+    private final File dir;
+    private final long maxBytes;
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    public Cache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    // Key of a parsed block compiled with opt
+    static String key(IRList ir, lab2.Options opt) {
+        final MessageDigest md = sha256();
+        md.update(VERSION.getBytes(StandardCharsets.US_ASCII));
+        md.update(Build.DIGEST);
+        final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        buf.putInt(opt.k).put((byte) (opt.renameOnly ? 1 : 0)).put((byte) (opt.optimize ? 1 : 0))
+                .put((byte) (opt.color ? 1 : 0)).putLong(opt.exact).putInt(opt.schedule);
+        for (int l : opt.latency) buf.putInt(l);
+        buf.putInt(ir.count);
+        for (int i = 0; i < ir.count; i++) {
+            if (buf.remaining() < 13) drain(md, buf);
+            final int b = 3 * i;
+            buf.put(ir.opc[i]).putInt(ir.sr[b]).putInt(ir.sr[b + 1]).putInt(ir.sr[b + 2]);
+        }
+        drain(md, buf);
+        final StringBuilder hex = new StringBuilder(64);
+        for (byte x : md.digest()) hex.append(Character.forDigit((x >> 4) & 15, 16)).append(Character.forDigit(x & 15, 16));
+        return hex.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Digest of the class files this compiler was loaded from, taken once
+    // per JVM on first use: every .class of the package, in name order, when
+    // running from a directory, or the whole jar. If they can't be read the
+    // digest is random, so this JVM shares no entries rather than stale ones
+    private static final class Build {
+        static final byte[] DIGEST = digest();
+
+        private static byte[] digest() {
+            final MessageDigest md = sha256();
+            try {
+                final CodeSource source = Cache.class.getProtectionDomain().getCodeSource();
+                final File root = (source == null) ? null : new File(source.getLocation().toURI());
+                final File[] classes = (root == null || !root.isDirectory()) ? null
+                        : new File(root, Cache.class.getPackage().getName()).listFiles();
+                if (classes != null) {
+                    Arrays.sort(classes);
+                    for (File f : classes) {
+                        if (!f.getName().endsWith(".class")) continue;
+                        md.update(f.getName().getBytes(StandardCharsets.UTF_8));
+                        md.update(Files.readAllBytes(f.toPath()));
+                    }
+                    return md.digest();
+                }
+                if (root != null && root.isFile()) return md.digest(Files.readAllBytes(root.toPath()));
+            } catch (IOException | URISyntaxException | SecurityException e) {
+                // fall through to a digest no other JVM has
+            }
+            return md.digest(UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void drain(MessageDigest md, ByteBuffer buf) {
+        md.update(buf.array(), 0, buf.position());
+        ((Buffer) buf).clear(); // through Buffer so the class still links on Java 8
+    }
+
+    // Copy the entry for key to out and return true, or false on a miss
+    boolean fetch(String key, Emitter out) throws IOException {
+        final File f = new File(dir, key + SUFFIX);
+        final InputStream in;
+        try {
+            in = new FileInputStream(f);
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return false;
+        }
+        try {
+            final byte[] chunk = new byte[1 << 16];
+            int n;
+            while ((n = in.read(chunk)) > 0) out.bytes(chunk, 0, n);
+        } finally {
+            in.close();
+        }
+        f.setLastModified(System.currentTimeMillis()); // most recently used
+        hits.incrementAndGet();
+        return true;
+    }
+
+    // A compile's output on its way into the cache: print into emitter(),
+    // then commit() copies it to the real output and publishes the entry
+    final class Entry {
+        private final String key;
+        private final Path tmp;
+        private final FileOutputStream file;
+        private final Emitter emitter;
+
+        private Entry(String key) throws IOException {
+            this.key = key;
+            tmp = Files.createTempFile(dir.toPath(), ".412alloc", ".tmp");
+            file = new FileOutputStream(tmp.toFile());
+            emitter = new Emitter(file.getChannel());
+        }
+
+        Emitter emitter() {
+            return emitter;
+        }
+
+        void commit(Emitter out) throws IOException {
+            try {
+                emitter.flush();
+                file.close();
+                final InputStream in = new FileInputStream(tmp.toFile());
+                try {
+                    final byte[] chunk = new byte[1 << 16];
+                    int n;
+                    while ((n = in.read(chunk)) > 0) out.bytes(chunk, 0, n);
+                } finally {
+                    in.close();
+                }
+                Files.move(tmp, new File(dir, key + SUFFIX).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                abandon();
+            }
+            trim();
+        }
+
+        // Drop the partial entry, e.g. when the compile failed
+        void abandon() throws IOException {
+            file.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Start an entry for key, or null if the directory can't take one
+    Entry store(String key) {
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) return null;
+            return new Entry(key);
+        } catch (IOException e) {
+            return null; // compile without caching
+        }
+    }
+
+    // Delete least recently used entries until the directory is back under
+    // 90% of its limit
+    private void trim() {
+        final File[] entries = dir.listFiles();
+        if (entries == null) return;
+        long total = 0;
+        for (File f : entries) total += f.getName().endsWith(SUFFIX) ? f.length() : 0;
+        if (total <= maxBytes) return;
+        final long[] used = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) used[i] = entries[i].lastModified();
+        final Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(used[a], used[b]);
+            }
+        });
+        final long target = maxBytes / 10 * 9;
+        for (int i = 0; i < order.length && total > target; i++) {
+            final File f = entries[order[i]];
+            if (!f.getName().endsWith(SUFFIX)) continue;
+            final long len = f.length();
+            if (f.delete()) total -= len;
+        }
+    }
+}
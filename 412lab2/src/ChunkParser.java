@@ -0,0 +1,193 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Scans and parses one large input on several threads, for -j. Every op is
+// on one line and both the scanner and the parser recover at the end of a
+// line, so the input is cut just after newlines into chunks, each with its
+// own Scanner and Parser. A first pass counts each chunk's lines so the
+// second numbers ops and errors as one pass over the whole input would.
+// Each chunk's errors are held until all are done and printed in chunk
+// order, then the chunks' ops are concatenated.
+final class ChunkParser {
+    // Smallest chunk worth a thread
+    static final int MIN_CHUNK = 1 << 22;
+    // Chunks of a file are mapped one by one, and a mapping holds under 2 GB
+    private static final long MAX_CHUNK = 1L << 30;
+
+    IRList ir;
+    boolean hadErrors;
+
+    // Whether an input of size bytes is split across threads
+    static boolean worthIt(long size, int threads) {
+        return threads > 1 && size >= 2L * MIN_CHUNK;
+    }
+
+    static ChunkParser parse(String fileName, int threads, PrintStream err, Stats stats) throws IOException {
+        final FileChannel fc = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        final List<ByteBuffer> chunks;
+        try {
+            chunks = split(fc, parts(fc.size(), threads));
+        } finally {
+            fc.close(); // the mappings stay valid
+        }
+        return parse(chunks, threads, err, stats);
+    }
+
+    // Parse ILOC already in memory, from the buffer's position to its limit
+    static ChunkParser parse(ByteBuffer input, int threads, PrintStream err, Stats stats) throws IOException {
+        return parse(split(input, parts(input.remaining(), threads)), threads, err, stats);
+    }
+
+    // Some chunks per thread, so one slow chunk doesn't hold up the rest
+    private static int parts(long size, int threads) {
+        final long most = Math.max(1, size / MIN_CHUNK);
+        final long least = (size + MAX_CHUNK - 1) / MAX_CHUNK;
+        return (int) Math.max(least, Math.min(4L * threads, most));
+    }
+
+    private static List<ByteBuffer> split(FileChannel fc, int parts) throws IOException {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        final long size = fc.size();
+        long start = 0;
+        for (int c = 1; c <= parts && start < size; c++) {
+            final long end = (c == parts) ? size : lineEnd(fc, Math.max(start, size / parts * c), size);
+            if (end > start) chunks.add(fc.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            start = end;
+        }
+        return chunks;
+    }
+
+    // Position just past the first newline at or after pos - 1
+    private static long lineEnd(FileChannel fc, long pos, long size) throws IOException {
+        final ByteBuffer window = ByteBuffer.allocate(1 << 12);
+        for (long p = Math.max(pos, 1) - 1; p < size; ) {
+            ((Buffer) window).clear(); // through Buffer so the class still links on Java 8
+            final int n = fc.read(window, p);
+            if (n <= 0) break;
+            for (int j = 0; j < n; j++) {
+                if (window.get(j) == '\n') return p + j + 1;
+            }
+            p += n;
+        }
+        return size;
+    }
+
+    private static List<ByteBuffer> split(ByteBuffer input, int parts) {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        final int base = input.position();
+        final int size = input.remaining();
+        int start = 0;
+        for (int c = 1; c <= parts && start < size; c++) {
+            int end = size;
+            if (c < parts) {
+                end = Math.max(start, (int) ((long) size * c / parts));
+                if (end > 0) end--;
+                while (end < size && input.get(base + end) != '\n') end++;
+                if (end < size) end++;
+            }
+            if (end > start) {
+                final ByteBuffer chunk = input.duplicate();
+                ((Buffer) chunk).limit(base + end).position(base + start);
+                chunks.add(chunk);
+            }
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static ChunkParser parse(final List<ByteBuffer> chunks, int threads, PrintStream err, final Stats stats)
+            throws IOException {
+        final int n = chunks.size();
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final ChunkParser result = new ChunkParser();
+        try {
+            final List<Callable<Integer>> counts = new ArrayList<>();
+            for (final ByteBuffer chunk : chunks) {
+                counts.add(new Callable<Integer>() {
+                    public Integer call() {
+                        int lines = 0;
+                        for (int i = chunk.position(); i < chunk.limit(); i++) {
+                            if (chunk.get(i) == '\n') lines++;
+                        }
+                        return lines;
+                    }
+                });
+            }
+            final int[] firstLine = new int[n];
+            int line = 1;
+            int c = 0;
+            for (Future<Integer> f : pool.invokeAll(counts)) {
+                firstLine[c++] = line;
+                line += f.get();
+            }
+
+            final List<Callable<Segment>> parses = new ArrayList<>();
+            for (c = 0; c < n; c++) {
+                final ByteBuffer chunk = chunks.get(c);
+                final int first = firstLine[c];
+                parses.add(new Callable<Segment>() {
+                    public Segment call() throws IOException {
+                        final long before = (stats == null) ? 0 : Stats.threadBytes();
+                        final Segment s = new Segment();
+                        final PrintStream errors = new PrintStream(s.errors);
+                        final Parser p = new Parser(new Scanner(chunk, first, errors));
+                        s.ir = p.parse();
+                        s.hadErrors = p.hadErrors();
+                        errors.flush();
+                        if (stats != null) s.bytes = Stats.threadBytes() - before;
+                        return s;
+                    }
+                });
+            }
+            final List<Segment> segments = new ArrayList<>();
+            int ops = 0;
+            for (Future<Segment> f : pool.invokeAll(parses)) {
+                final Segment s = f.get();
+                segments.add(s);
+                ops += s.ir.count;
+            }
+
+            result.ir = new IRList(ops);
+            for (Segment s : segments) {
+                s.errors.writeTo(err);
+                result.hadErrors |= s.hadErrors;
+                result.ir.appendAll(s.ir);
+                if (stats != null) stats.addBytes(Stats.PARSE, s.bytes);
+            }
+            err.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("parse interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            pool.shutdown();
+        }
+        return result;
+    }
+
+    // One chunk's ops and the errors it printed
+    private static final class Segment {
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        IRList ir;
+        boolean hadErrors;
+        long bytes;
+    }
+}
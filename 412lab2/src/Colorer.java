@@ -0,0 +1,447 @@
+package src;
+
+import java.util.Arrays;
+
+// Chaitin-Briggs graph coloring, the second allocation engine (-color).
+// Works region by region like Allocator, on the renamed block: each VR has
+// one def, so its live range is one interval. Positions 2i and 2i+1 are the
+// reads and the write of op i; a range runs from the write of its def to the
+// read of its last use, and two ranges interfere when they overlap.
+//
+// Simplify removes nodes of degree < K and, when none is left, the one with
+// the least spill cost per degree, which is pushed anyway in case it still
+// colors (Briggs). Select colors in reverse, lowest color first. A range
+// that gets no color is spilled everywhere: stored after its def and loaded
+// before each use, or for a loadI, rebuilt before each use with its def
+// dropped. Each store and load is a one-position piece that needs a color
+// of its own, so the graph is rebuilt and colored again until nothing spills.
+//
+// The graph is held as CSR adjacency, built in two sweeps over the
+// positions: the first counts degrees, the second fills the edges.
+public final class Colorer {
+    private static final int INF = Integer.MAX_VALUE;
+
+    private final IRList ir;
+    private final int k;
+    private final int spillBase;
+    private boolean spillMayAlias; // see Allocator.spillBase
+    private final SpillCode spill = new SpillCode();
+    private final SpillSlots slots = new SpillSlots();
+
+    // Counters for -stats, see Stats
+    private long spillStores, reloads, remats, addrLoadIs, addrReused;
+    private long rangesSpilled, rematsSpilled;
+    private int rounds;
+
+    private Colorer(IRList ir, int k, int spillBase) {
+        this.ir = ir;
+        this.k = k;
+        this.spillBase = spillBase;
+    }
+
+    // Fill in ir.pr and ir.spill, as Allocator.allocate does
+    public static void allocate(IRList ir, int k, Renamer rn, Stats stats) {
+        if (ir == null || ir.count == 0) return;
+        ir.pr = new int[3 * ir.count];
+        final int maxConst = Allocator.maxConstant(ir);
+        Colorer c = new Colorer(ir, k, Allocator.spillBase(maxConst, rn.maxLive));
+        c.spillMayAlias = c.spillBase <= maxConst;
+        for (int r = 0; r < rn.regions; r++) {
+            final int end = (r + 1 < rn.regions) ? rn.regionStart[r + 1] : ir.count;
+            c.region(rn.regionStart[r], end, rn.regionMaxLive[r]);
+        }
+        ir.spill = c.spill;
+        if (stats != null) c.addTo(stats);
+    }
+
+    private void addTo(Stats s) {
+        s.spillStores += spillStores;
+        s.reloads += reloads;
+        s.remats += remats;
+        s.addrLoadIs += addrLoadIs;
+        s.addrReused += addrReused;
+        s.inserted += spill.count;
+        s.victims[0] += rangesSpilled - rematsSpilled;
+        s.victims[2] += rematsSpilled;
+        s.spillBase = spillBase;
+        s.spillMayAlias = spillMayAlias;
+        s.spillSlots = slots.most;
+        s.colorRounds += rounds;
+    }
+
+    // Live ranges of one region, VR v at index v - vrLo
+    private int vrLo;
+    private int[] defAt;     // op defining the VR, -1 if live into the region
+    private int[] lastUse;   // op of its last use, -1 if none
+    private int[] useCount;
+    private boolean[] remat;   // defined by loadI
+    private boolean[] spilled;
+
+    // Nodes of the current round: live ranges not spilled, then pieces.
+    // A piece is a spilled VR at a single position
+    private int nodes;
+    private int[] first, last; // positions, inclusive
+    private int[] owner;       // VR
+    private boolean[] piece;
+    private int[] color;
+    private int[] off, adj;    // CSR adjacency
+
+    private void region(int from, int to, int maxLive) {
+        final boolean maySpill = maxLive > k;
+        final int colors = maySpill ? k - 1 : k; // k - 1 holds spill addresses
+        if (colors <= 0) throw new IllegalArgumentException("k too small for allocation");
+        ranges(from, to);
+
+        int[] pieceAt = null; // node of the piece for operand slot, by 3 * (i - from) + slot
+        while (true) {
+            rounds++;
+            pieceAt = buildNodes(from, to);
+            buildGraph(from, to);
+            if (select(colors, simplify(colors))) break;
+        }
+        rewrite(from, to, pieceAt, colors);
+    }
+
+    private void ranges(int from, int to) {
+        final int[] vr = ir.vr;
+        int lo = INF, hi = -1;
+        // Only register operands: the other slots hold 0, not a VR
+        for (int i = from; i < to; i++) {
+            final int o = ir.opc[i];
+            final int b = 3 * i;
+            for (int slot : Op.uses(o)) {
+                lo = Math.min(lo, vr[b + slot]);
+                hi = Math.max(hi, vr[b + slot]);
+            }
+            if (Op.isDef(o)) {
+                lo = Math.min(lo, vr[b + 2]);
+                hi = Math.max(hi, vr[b + 2]);
+            }
+        }
+        final int n = (hi < 0) ? 0 : hi - lo + 1;
+        vrLo = (hi < 0) ? 0 : lo;
+        defAt = new int[n];
+        lastUse = new int[n];
+        useCount = new int[n];
+        remat = new boolean[n];
+        spilled = new boolean[n];
+        Arrays.fill(defAt, -1);
+        Arrays.fill(lastUse, -1);
+        for (int i = from; i < to; i++) {
+            final int o = ir.opc[i];
+            final int b = 3 * i;
+            for (int slot : Op.uses(o)) {
+                final int v = vr[b + slot] - vrLo;
+                lastUse[v] = i;
+                useCount[v]++;
+            }
+            if (Op.isDef(o)) {
+                defAt[vr[b + 2] - vrLo] = i;
+                remat[vr[b + 2] - vrLo] = (o == Op.LOADI);
+            }
+        }
+    }
+
+    // Nodes for this round, returns the piece of each operand slot
+    private int[] buildNodes(int from, int to) {
+        final int n = defAt.length;
+        final int[] vr = ir.vr;
+        int count = 0;
+        for (int v = 0; v < n; v++) {
+            if (!spilled[v] && (defAt[v] >= 0 || lastUse[v] >= 0)) count++;
+        }
+        for (int i = from; i < to; i++) {
+            final int b = 3 * i;
+            final int[] uses = Op.uses(ir.opc[i]);
+            for (int u = 0; u < uses.length; u++) {
+                final int v = vr[b + uses[u]] - vrLo;
+                if (spilled[v] && (u == 0 || vr[b + uses[0]] - vrLo != v)) count++;
+            }
+            if (Op.isDef(ir.opc[i])) {
+                final int v = vr[b + 2] - vrLo;
+                if (spilled[v] && !remat[v]) count++;
+            }
+        }
+        first = new int[count];
+        last = new int[count];
+        owner = new int[count];
+        piece = new boolean[count];
+        nodes = 0;
+        for (int v = 0; v < n; v++) {
+            if (spilled[v] || (defAt[v] < 0 && lastUse[v] < 0)) continue;
+            final int start = (defAt[v] < 0) ? 2 * from : 2 * defAt[v] + 1;
+            // never used: it still takes a register as the op writes it
+            final boolean dead = lastUse[v] < 0;
+            addNode(v, start, dead ? start : 2 * lastUse[v], dead);
+        }
+        final int[] pieceAt = new int[3 * (to - from)];
+        Arrays.fill(pieceAt, -1);
+        for (int i = from; i < to; i++) {
+            final int b = 3 * i;
+            final int[] uses = Op.uses(ir.opc[i]);
+            for (int u = 0; u < uses.length; u++) {
+                final int v = vr[b + uses[u]] - vrLo;
+                if (!spilled[v]) continue;
+                if (u > 0 && vr[b + uses[0]] - vrLo == v) {
+                    pieceAt[3 * (i - from) + uses[u]] = pieceAt[3 * (i - from) + uses[0]];
+                } else {
+                    pieceAt[3 * (i - from) + uses[u]] = addNode(v, 2 * i, 2 * i, true);
+                }
+            }
+            if (Op.isDef(ir.opc[i])) {
+                final int v = vr[b + 2] - vrLo;
+                if (spilled[v] && !remat[v]) pieceAt[3 * (i - from) + 2] = addNode(v, 2 * i + 1, 2 * i + 1, true);
+            }
+        }
+        return pieceAt;
+    }
+
+    private int addNode(int v, int start, int end, boolean isPiece) {
+        first[nodes] = start;
+        last[nodes] = end;
+        owner[nodes] = v;
+        piece[nodes] = isPiece;
+        return nodes++;
+    }
+
+    // Two sweeps over the positions, nodes entering in order of their first
+    // position; each meets every node still open at that point
+    private void buildGraph(int from, int to) {
+        final int base = 2 * from, span = 2 * (to - from);
+        final int[] startHead = new int[span + 1];
+        final int[] byStart = new int[nodes];
+        final int[] endHead = new int[span + 1];
+        final int[] byEnd = new int[nodes];
+        for (int x = 0; x < nodes; x++) {
+            startHead[first[x] - base + 1]++;
+            endHead[last[x] - base + 1]++;
+        }
+        for (int p = 0; p < span; p++) {
+            startHead[p + 1] += startHead[p];
+            endHead[p + 1] += endHead[p];
+        }
+        final int[] fill = Arrays.copyOf(startHead, span);
+        final int[] fillEnd = Arrays.copyOf(endHead, span);
+        for (int x = 0; x < nodes; x++) {
+            byStart[fill[first[x] - base]++] = x;
+            byEnd[fillEnd[last[x] - base]++] = x;
+        }
+
+        off = new int[nodes + 1];
+        final int[] open = new int[nodes];
+        final int[] openAt = new int[nodes];
+        for (int pass = 0; pass < 2; pass++) {
+            final int[] at = (pass == 0) ? null : Arrays.copyOf(off, nodes);
+            int openCount = 0;
+            for (int p = 0; p < span; p++) {
+                for (int j = startHead[p]; j < startHead[p + 1]; j++) {
+                    final int x = byStart[j];
+                    if (pass == 0) {
+                        off[x + 1] += openCount;
+                        for (int o = 0; o < openCount; o++) off[open[o] + 1]++;
+                    } else {
+                        for (int o = 0; o < openCount; o++) {
+                            final int y = open[o];
+                            adj[at[x]++] = y;
+                            adj[at[y]++] = x;
+                        }
+                    }
+                    openAt[x] = openCount;
+                    open[openCount++] = x;
+                }
+                for (int j = endHead[p]; j < endHead[p + 1]; j++) { // closes after p
+                    final int x = byEnd[j];
+                    final int moved = open[--openCount];
+                    open[openAt[x]] = moved;
+                    openAt[moved] = openAt[x];
+                }
+            }
+            if (pass == 0) {
+                long total = 0;
+                for (int x = 0; x < nodes; x++) {
+                    total += off[x + 1];
+                    if (total > Integer.MAX_VALUE - 8) {
+                        throw new IllegalStateException("interference graph too large for -color");
+                    }
+                    off[x + 1] = (int) total;
+                }
+                adj = new int[off[nodes]];
+            }
+        }
+    }
+
+    // Removal order, last removed first in the result
+    private int[] simplify(int colors) {
+        final int[] degree = new int[nodes];
+        final boolean[] removed = new boolean[nodes];
+        final int[] low = new int[nodes];
+        int lowCount = 0;
+        for (int x = 0; x < nodes; x++) {
+            degree[x] = off[x + 1] - off[x];
+            if (degree[x] < colors) low[lowCount++] = x;
+        }
+
+        // Spill candidates, cheapest per degree first and pieces last: the
+        // float bits of the ratio order like the ratio, the node goes below
+        final long[] order = new long[nodes];
+        for (int x = 0; x < nodes; x++) {
+            final float metric = piece[x] ? Float.MAX_VALUE : spillCost(owner[x]) / (float) (degree[x] + 1);
+            order[x] = ((long) Float.floatToIntBits(metric) << 32) | x;
+        }
+        Arrays.sort(order);
+
+        final int[] stack = new int[nodes];
+        int top = 0, next = 0;
+        while (top < nodes) {
+            int x;
+            if (lowCount > 0) {
+                x = low[--lowCount];
+                if (removed[x]) continue;
+            } else {
+                do x = (int) order[next++]; while (removed[x]);
+            }
+            removed[x] = true;
+            stack[top++] = x;
+            for (int e = off[x]; e < off[x + 1]; e++) {
+                final int y = adj[e];
+                if (!removed[y] && --degree[y] == colors - 1) low[lowCount++] = y;
+            }
+        }
+        return stack;
+    }
+
+    // Ops spilling v everywhere would insert
+    private int spillCost(int v) {
+        if (remat[v]) return useCount[v] - 1; // a loadI per use, less the def
+        return (defAt[v] >= 0 ? 2 : 0) + 2 * useCount[v];
+    }
+
+    // Color in reverse removal order. False if a range had to be spilled,
+    // for another round
+    private boolean select(int colors, int[] stack) {
+        color = new int[nodes];
+        Arrays.fill(color, -1);
+        final int[] taken = new int[colors];
+        int stamp = 0;
+        boolean done = true;
+        for (int t = nodes - 1; t >= 0; t--) {
+            final int x = stack[t];
+            stamp++;
+            for (int e = off[x]; e < off[x + 1]; e++) {
+                final int c = color[adj[e]];
+                if (c >= 0) taken[c] = stamp;
+            }
+            int c = 0;
+            while (c < colors && taken[c] == stamp) c++;
+            if (c < colors) {
+                color[x] = c;
+                continue;
+            }
+            done = false;
+            if (!piece[x]) {
+                spilled[owner[x]] = true;
+                continue;
+            }
+            // A store or load found no room: spill the cheapest range it meets
+            int victim = -1;
+            for (int e = off[x]; e < off[x + 1]; e++) {
+                final int y = adj[e];
+                if (piece[y]) continue;
+                if (victim < 0 || spillCost(owner[y]) < spillCost(owner[victim])) victim = y;
+            }
+            if (victim < 0) throw new IllegalStateException("no range to spill for -color");
+            spilled[owner[victim]] = true;
+        }
+        return done;
+    }
+
+    // Registers into ir.pr, spill code into spill, loadIs that are rebuilt
+    // at each use become nops
+    private void rewrite(int from, int to, int[] pieceAt, int colors) {
+        final int[] vr = ir.vr;
+        final int[] nu = ir.nu;
+        final int[] prs = ir.pr;
+        final int[] rangeNode = new int[defAt.length];
+        final int[] slotOf = new int[defAt.length];
+        Arrays.fill(rangeNode, -1);
+        Arrays.fill(slotOf, -1);
+        for (int x = 0; x < nodes; x++) {
+            if (!spilled[owner[x]]) rangeNode[owner[x]] = x; // pieces belong to spilled VRs only
+        }
+        for (int v = 0; v < defAt.length; v++) {
+            if (!spilled[v]) continue;
+            rangesSpilled++;
+            if (remat[v]) rematsSpilled++;
+        }
+        final int addrPR = colors; // only used when colors is k - 1
+        int addrHolds = -1;
+        int pendingStore = -1; // PR to store after the previous op
+        int pendingAddr = -1;
+
+        for (int i = from; i < to; i++) {
+            final int o = ir.opc[i];
+            final int b = 3 * i;
+            final int p = 3 * (i - from);
+            if (pendingStore >= 0) {
+                addrHolds = loadAddr(i, pendingAddr, addrPR, addrHolds);
+                spill.add(i, Op.STORE, pendingStore, addrPR);
+                spillStores++;
+                pendingStore = -1;
+            }
+            final int[] uses = Op.uses(o);
+            for (int u = 0; u < uses.length; u++) {
+                final int slot = uses[u];
+                final int v = vr[b + slot] - vrLo;
+                if (!spilled[v]) {
+                    prs[b + slot] = color[rangeNode[v]];
+                    continue;
+                }
+                final int pr = color[pieceAt[p + slot]];
+                prs[b + slot] = pr;
+                if (u > 0 && vr[b + uses[0]] - vrLo == v) continue; // loaded for slot 0
+                if (remat[v]) {
+                    spill.add(i, Op.LOADI, ir.sr[3 * defAt[v]], pr);
+                    remats++;
+                } else {
+                    if (slotOf[v] < 0) slotOf[v] = slots.take(); // never stored, read it anyway
+                    addrHolds = loadAddr(i, spillBase + slotOf[v] * Allocator.WORD, addrPR, addrHolds);
+                    spill.add(i, Op.LOAD, addrPR, pr);
+                    reloads++;
+                }
+            }
+            for (int slot : uses) { // slots go back after the last use
+                final int v = vr[b + slot] - vrLo;
+                if (spilled[v] && nu[b + slot] == INF && slotOf[v] >= 0) {
+                    slots.free(slotOf[v]);
+                    slotOf[v] = -1;
+                }
+            }
+            if (Op.isDef(o)) {
+                final int v = vr[b + 2] - vrLo;
+                if (!spilled[v]) {
+                    prs[b + 2] = color[rangeNode[v]];
+                } else if (remat[v]) {
+                    ir.opc[i] = Op.NOP;
+                } else {
+                    final int pr = color[pieceAt[p + 2]];
+                    prs[b + 2] = pr;
+                    if (nu[b + 2] == INF) continue; // never read, so no store and no slot
+                    slotOf[v] = slots.take();
+                    pendingStore = pr;
+                    pendingAddr = spillBase + slotOf[v] * Allocator.WORD;
+                }
+            }
+        }
+    }
+
+    // Point addrPR at addr, unless it already holds it; returns what it holds
+    private int loadAddr(int at, int addr, int addrPR, int holds) {
+        if (holds == addr) {
+            addrReused++;
+            return holds;
+        }
+        spill.add(at, Op.LOADI, addr, addrPR);
+        addrLoadIs++;
+        return addr;
+    }
+}
@@ -0,0 +1,290 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Long running lab2 that keeps a warm JIT between compiles. It listens on
+// 127.0.0.1 and runs each request on a pooled worker through the same
+// lab2.run() as the command line.
+//
+// The port and a random token go to the state file (~/.412alloc.daemon, or
+// $ALLOC412_DAEMON_FILE), readable by its owner only. A request is
+//
+//     412alloc <token>\n <cwd>\n <argc>\n <arg>\n ...
+//
+// followed by "<length>\n<bytes>" when one of the args is "-". The reply is
+// sent as it is produced: "O <length>\n<bytes>" for each piece of stdout and
+// "E <line>\n" for each stderr line, in the order they were written, then
+// "X <status>\n" last.
+public final class Daemon {
+    private static final String MAGIC = "412alloc";
+    private static final int MAX_LINE = 1 << 16;
+    private static final int MAX_ARGS = 1 << 12;
+
+    private final String token;
+    private final ServerSocket server;
+    private volatile boolean stopping;
+
+    private Daemon(ServerSocket server, String token) {
+        this.server = server;
+        this.token = token;
+    }
+
+    // 412alloc -daemon [port]; port 0 or none picks a free one
+    static int serve(String[] args) {
+        int port = 0;
+        if (args.length > 2) {
+            System.err.println("ERROR: -daemon takes at most a port");
+            return 1;
+        }
+        if (args.length == 2) {
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException nfe) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535) {
+                System.err.println("ERROR: -daemon port must be in [0, 65535].");
+                return 1;
+            }
+        }
+
+        final Path state = stateFile().toPath();
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (ServerSocket ss = new ServerSocket(port, 128, InetAddress.getLoopbackAddress())) {
+            Daemon d = new Daemon(ss, newToken());
+            writeState(state, ss.getLocalPort() + " " + d.token + "\n");
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() { deleteState(state); }
+            });
+            System.err.println("412alloc daemon listening on 127.0.0.1:" + ss.getLocalPort());
+            while (!d.stopping) {
+                final Socket s;
+                try {
+                    s = ss.accept();
+                } catch (SocketException e) {
+                    if (d.stopping) break; // closed by -stop
+                    throw e;
+                }
+                final Daemon daemon = d;
+                workers.execute(new Runnable() {
+                    public void run() { daemon.handle(s); }
+                });
+            }
+            return 0;
+        } catch (IOException e) {
+            System.err.println("ERROR: daemon: " + e.getMessage());
+            return 1;
+        } finally {
+            workers.shutdown();
+            try { // let in-flight requests, including the -stop reply, finish
+                workers.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deleteState(state);
+        }
+    }
+
+    static File stateFile() {
+        String f = System.getenv("ALLOC412_DAEMON_FILE");
+        return (f != null && !f.isEmpty()) ? new File(f) : new File(System.getProperty("user.home"), ".412alloc.daemon");
+    }
+
+    private static String newToken() {
+        byte[] b = new byte[16];
+        new SecureRandom().nextBytes(b);
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b) sb.append(String.format("%02x", x & 0xFF));
+        return sb.toString();
+    }
+
+    // Write via a private temp file and rename, so a client never sees half a token
+    private static void writeState(Path state, String text) throws IOException {
+        Path dir = state.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, ".412alloc", ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system, keep the default permissions
+            }
+            Files.write(tmp, text.getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, state, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void deleteState(Path state) {
+        try {
+            Files.deleteIfExists(state);
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            String hello = readLine(in);
+            if (hello == null || !hello.equals(MAGIC + " " + token)) return; // not one of ours
+            String cwd = readLine(in);
+            String argc = readLine(in);
+            if (cwd == null || argc == null) return;
+            final Reply reply = new Reply(s.getOutputStream());
+            int count;
+            try {
+                count = Integer.parseInt(argc);
+            } catch (NumberFormatException nfe) {
+                count = -1;
+            }
+            if (count < 0 || count > MAX_ARGS) {
+                reply.error("ERROR: bad argument count in request");
+                reply.exit(1);
+                return;
+            }
+            String[] args = new String[count];
+            boolean wantsStdin = false;
+            for (int i = 0; i < args.length; i++) {
+                args[i] = readLine(in);
+                if (args[i] == null) return;
+                if (args[i].equals("-")) wantsStdin = true;
+            }
+            byte[] stdin = new byte[0];
+            if (wantsStdin) {
+                String len = readLine(in);
+                if (len == null) return;
+                stdin = readFully(in, Integer.parseInt(len));
+            }
+
+            PrintStream err = new PrintStream(reply.errors(), true, "UTF-8");
+            int status;
+            if (args.length == 1 && args[0].equals("-stop")) {
+                status = 0;
+                stop();
+            } else if (args.length > 0 && args[0].equals("-daemon")) {
+                err.println("ERROR: a daemon is already running");
+                status = 1;
+            } else {
+                Emitter out = new Emitter(reply.output(), 1 << 16);
+                try {
+                    status = lab2.run(args, new lab2.Env(new File(cwd), new ByteArrayInputStream(stdin)), out, err);
+                    out.flush();
+                } catch (IOException | RuntimeException e) {
+                    err.println("ERROR: " + e);
+                    status = 1;
+                }
+            }
+            reply.exit(status);
+        } catch (IOException | NumberFormatException e) {
+            // client went away or spoke garbage, drop it
+        }
+    }
+
+    // The frames of one reply. Output and error lines share the socket, so
+    // each frame goes out whole under the reply's lock
+    private static final class Reply {
+        private final OutputStream sock;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        Reply(OutputStream sock) {
+            this.sock = sock;
+        }
+
+        // stdout, one frame per write; Emitter writes whole buffers
+        OutputStream output() {
+            return new OutputStream() {
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (len > 0) frame(("O " + len + "\n").getBytes(StandardCharsets.US_ASCII), b, off, len);
+                }
+            };
+        }
+
+        // stderr, one frame per complete line
+        OutputStream errors() {
+            return new OutputStream() {
+                public void write(int b) throws IOException {
+                    synchronized (Reply.this) {
+                        if (b == '\n') {
+                            error(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                            line.reset();
+                        } else {
+                            line.write(b);
+                        }
+                    }
+                }
+            };
+        }
+
+        synchronized void error(String text) throws IOException {
+            frame(("E " + text + "\n").getBytes(StandardCharsets.UTF_8), null, 0, 0);
+        }
+
+        synchronized void exit(int status) throws IOException {
+            if (line.size() > 0) error(new String(line.toByteArray(), StandardCharsets.UTF_8)); // no newline at the end
+            frame(("X " + status + "\n").getBytes(StandardCharsets.US_ASCII), null, 0, 0);
+        }
+
+        private synchronized void frame(byte[] head, byte[] b, int off, int len) throws IOException {
+            sock.write(head);
+            if (len > 0) sock.write(b, off, len);
+            sock.flush();
+        }
+    }
+
+    private void stop() {
+        stopping = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (line.size() >= MAX_LINE) throw new IOException("request line too long");
+            line.write(c);
+        }
+        if (c == -1 && line.size() == 0) return null;
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFully(InputStream in, int len) throws IOException {
+        if (len < 0) throw new IOException("bad length");
+        byte[] b = new byte[len];
+        int off = 0;
+        while (off < len) {
+            int n = in.read(b, off, len - off);
+            if (n < 0) throw new IOException("short request");
+            off += n;
+        }
+        return b;
+    }
+}
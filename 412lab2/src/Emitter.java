@@ -0,0 +1,184 @@
+package src;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+// Output sink shared by every print path. Opcodes, registers and integers are
+// encoded straight into one large byte buffer, which goes out in big writes.
+// Not thread safe: one Emitter per output.
+public final class Emitter {
+    private static final int SIZE = 1 << 18;
+    private static final int MAX_OP = 64; // longest line a single op can print
+
+    // Opcode names in Op order, pre-encoded
+    private static final byte[][] OPCODE = new byte[Op.NOP + 1][];
+    static {
+        for (int o = 0; o <= Op.NOP; o++) OPCODE[o] = ascii(Op.name(o));
+    }
+    private static final byte[] INTO = ascii(" => ");
+
+    private final WritableByteChannel out;
+    private final byte[] buf;
+    private final ByteBuffer view;
+    private final byte[] digits = new byte[11];
+    private int pos;
+
+    public Emitter(WritableByteChannel out) {
+        this(out, SIZE);
+    }
+
+    // Smaller buffers suit in-memory targets, which gain nothing from big writes
+    public Emitter(WritableByteChannel out, int size) {
+        this.out = out;
+        this.buf = new byte[Math.max(MAX_OP, size)];
+        this.view = ByteBuffer.wrap(buf);
+    }
+
+    public Emitter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    public Emitter(OutputStream out, int size) {
+        this(Channels.newChannel(out), size);
+    }
+
+    // Raw stdout, bypassing System.out and its per-call locking
+    public static Emitter stdout() {
+        return new Emitter(new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (pos + n > buf.length) flushBuffer();
+    }
+
+    public Emitter ch(char c) throws IOException {
+        ensure(1);
+        buf[pos++] = (byte) c;
+        return this;
+    }
+
+    public Emitter nl() throws IOException {
+        return ch('\n');
+    }
+
+    // ASCII text; anything outside ASCII is written as '?'
+    public Emitter text(String s) throws IOException {
+        for (int i = 0, n = s.length(); i < n; ) {
+            ensure(1);
+            int m = Math.min(n - i, buf.length - pos);
+            for (int j = 0; j < m; j++) {
+                char c = s.charAt(i + j);
+                buf[pos++] = (byte) (c < 0x80 ? c : '?');
+            }
+            i += m;
+        }
+        return this;
+    }
+
+    public Emitter bytes(byte[] b, int off, int len) throws IOException {
+        if (len > buf.length - pos) {
+            flush();
+            if (len > buf.length) { // too big to be worth buffering
+                ByteBuffer direct = ByteBuffer.wrap(b, off, len);
+                while (direct.hasRemaining()) out.write(direct);
+                return this;
+            }
+        }
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+        return this;
+    }
+
+    public Emitter num(int v) throws IOException {
+        ensure(digits.length);
+        if (v < 0) {
+            buf[pos++] = '-';
+            if (v == Integer.MIN_VALUE) { // no positive counterpart
+                return text("2147483648");
+            }
+            v = -v;
+        }
+        int d = digits.length;
+        do {
+            digits[--d] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        int n = digits.length - d;
+        System.arraycopy(digits, d, buf, pos, n);
+        pos += n;
+        return this;
+    }
+
+    public Emitter reg(int r) throws IOException {
+        ensure(1);
+        buf[pos++] = 'r';
+        return num(r);
+    }
+
+    public Emitter opcode(int opc) throws IOException {
+        byte[] name = OPCODE[opc];
+        ensure(name.length);
+        System.arraycopy(name, 0, buf, pos, name.length);
+        pos += name.length;
+        return this;
+    }
+
+    private void into() throws IOException {
+        System.arraycopy(INTO, 0, buf, pos, INTO.length);
+        pos += INTO.length;
+    }
+
+    // One op in ILOC syntax, e.g. "add r1, r2 => r3". s0 is the constant for
+    // loadI and output, a register otherwise
+    public void op(int opc, int s0, int s1, int s2) throws IOException {
+        ensure(MAX_OP);
+        opcode(opc);
+        switch (opc) {
+            case Op.LOADI:
+                ch(' ').num(s0);
+                into();
+                reg(s2);
+                break;
+            case Op.LOAD:
+            case Op.STORE:
+                ch(' ').reg(s0);
+                into();
+                reg(s2);
+                break;
+            case Op.ADD: case Op.SUB: case Op.MULT: case Op.LSHIFT: case Op.RSHIFT:
+                ch(' ').reg(s0).ch(',').ch(' ').reg(s1);
+                into();
+                reg(s2);
+                break;
+            case Op.OUTPUT:
+                ch(' ').num(s0);
+                break;
+            default:
+                break;
+        }
+        nl();
+    }
+
+    private void flushBuffer() throws IOException {
+        ((Buffer) view).clear();  // through Buffer so the class still links on Java 8
+        ((Buffer) view).limit(pos);
+        while (view.hasRemaining()) out.write(view);
+        pos = 0;
+    }
+
+    public void flush() throws IOException {
+        if (pos > 0) flushBuffer();
+    }
+}
@@ -0,0 +1,261 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+// Binary form of a block, for -save and -load, so a block parsed (and
+// renamed) once is read back without the scanner or the parser, and without
+// the renamer when it carries its names.
+//
+// After a header of MAGIC, VERSION, a flags byte and the op count, each op
+// is its opcode, its line as the difference from the previous op's and the
+// sr slots it uses (the others are 0). A renamed block also has, for each
+// register operand, its VR and next use: 0 for none, else the distance to
+// that op. Then come the renamer's totals and regions. Every number but the
+// opcode is a varint: 7 bits a byte, low bits first, the top bit set on all
+// but the last byte; the line difference is zigzag coded since ops may be
+// out of line order.
+//
+// A file is checked as it is read, sizes against the bytes left and the
+// VR names against the renamer's rules, so a corrupt one is an IOException
+// rather than a huge allocation, an index out of bounds or bad code later on.
+final class IRFile {
+    private static final byte[] MAGIC = {'4', '1', '2', 'I', 'R'};
+    private static final int VERSION = 1;
+    private static final int RENAMED = 1; // flag: vr, nu and the regions follow
+    private static final int SIZE = 1 << 18;
+    private static final int MAX_OP = 64; // most bytes one op takes
+
+    // The sr slots each opcode fills: its registers and loadI's or output's constant
+    private static final int[][] SLOTS = new int[Op.NOP + 1][];
+    static {
+        for (int o = 0; o <= Op.NOP; o++) {
+            final boolean constant = o == Op.LOADI || o == Op.OUTPUT;
+            final int[] uses = Op.uses(o);
+            final int[] slots = new int[(constant ? 1 : 0) + uses.length + (Op.isDef(o) ? 1 : 0)];
+            int n = 0;
+            if (constant) slots[n++] = 0;
+            for (int slot : uses) slots[n++] = slot;
+            if (Op.isDef(o)) slots[n++] = 2;
+            SLOTS[o] = slots;
+        }
+    }
+
+    IRList ir;
+    Renamer renamed; // null when the file has no VR names
+
+    // Write ir, with its VR names and rn's regions when rn is not null
+    static void write(IRList ir, Renamer rn, WritableByteChannel out) throws IOException {
+        final Writer w = new Writer(out);
+        for (byte b : MAGIC) w.buf[w.pos++] = b;
+        w.buf[w.pos++] = VERSION;
+        w.buf[w.pos++] = (byte) (rn == null ? 0 : RENAMED);
+        w.varint(ir.count);
+        int prevLine = 0;
+        for (int i = 0; i < ir.count; i++) {
+            if (w.pos > w.buf.length - MAX_OP) w.drain();
+            final int o = ir.opc[i];
+            final int b = 3 * i;
+            w.buf[w.pos++] = (byte) o;
+            final int d = ir.line[i] - prevLine;
+            w.varint((d << 1) ^ (d >> 31));
+            prevLine = ir.line[i];
+            for (int slot : SLOTS[o]) w.varint(ir.sr[b + slot]);
+            if (rn == null) continue;
+            for (int slot : Op.uses(o)) w.name(ir, i, slot);
+            if (Op.isDef(o)) w.name(ir, i, 2);
+        }
+        if (rn != null) {
+            w.drain();
+            w.varint(rn.maxLive);
+            w.varint(rn.vrCount);
+            w.varint(rn.regions);
+            for (int r = 0; r < rn.regions; r++) {
+                if (w.pos > w.buf.length - MAX_OP) w.drain();
+                w.varint(rn.regionStart[r]);
+                w.varint(rn.regionMaxLive[r]);
+            }
+        }
+        w.drain();
+    }
+
+    // Read a file of size bytes
+    static IRFile read(ReadableByteChannel in, long size) throws IOException {
+        final Reader r = new Reader(in, size);
+        r.fill();
+        for (byte b : MAGIC) {
+            if (r.pos == r.end || r.buf[r.pos++] != b) throw new IOException("not a 412 IR file");
+        }
+        if (r.end - r.pos < 2 || r.buf[r.pos++] != VERSION) throw new IOException("unsupported IR file version");
+        final boolean named = (r.buf[r.pos++] & RENAMED) != 0;
+        final int n = r.varint();
+        if (n < 0 || n > r.remaining() / 2) throw bad(); // an op takes 2 bytes or more
+        final IRFile f = new IRFile();
+        final IRList ir = f.ir = new IRList(n);
+        final byte[] opc = ir.opc;
+        final int[] line = ir.line;
+        final int[] sr = ir.sr;
+        final int[] vr = named ? (ir.vr = new int[3 * n]) : null;
+        final int[] nu = named ? (ir.nu = new int[3 * n]) : null;
+        int prevLine = 0;
+        for (int i = 0; i < n; i++) {
+            if (r.end - r.pos < MAX_OP) r.fill();
+            if (r.pos == r.end) throw new IOException("IR file is truncated");
+            final int o = r.buf[r.pos++];
+            if (o < 0 || o > Op.NOP) throw bad();
+            final int b = 3 * i;
+            opc[i] = (byte) o;
+            final int z = r.varint();
+            prevLine = line[i] = prevLine + ((z >>> 1) ^ -(z & 1));
+            for (int slot : SLOTS[o]) {
+                if ((sr[b + slot] = r.varint()) < 0) throw bad();
+            }
+            if (!named) continue;
+            for (int slot : Op.uses(o)) {
+                vr[b + slot] = r.varint();
+                nu[b + slot] = next(i, r.varint(), n);
+            }
+            if (Op.isDef(o)) {
+                vr[b + 2] = r.varint();
+                nu[b + 2] = next(i, r.varint(), n);
+            }
+        }
+        ir.count = n;
+        if (named) {
+            r.fill();
+            final int maxLive = r.varint(), vrCount = r.varint();
+            // Every VR is some operand's, and no more can be live than exist
+            if (vrCount < 0 || vrCount > 3L * n || maxLive < 0 || maxLive > vrCount) throw bad();
+            checkNames(ir, vrCount);
+            final Renamer rn = f.renamed = new Renamer(maxLive, vrCount);
+            rn.regions = r.varint();
+            // Op 0 starts the first region and each later one starts further on
+            if (rn.regions < (n > 0 ? 1 : 0) || rn.regions > n) throw bad();
+            rn.regionStart = new int[rn.regions];
+            rn.regionMaxLive = new int[rn.regions];
+            for (int k = 0; k < rn.regions; k++) {
+                if (r.end - r.pos < MAX_OP) r.fill();
+                final int start = rn.regionStart[k] = r.varint();
+                final int live = rn.regionMaxLive[k] = r.varint();
+                if ((k == 0 ? start != 0 : start <= rn.regionStart[k - 1]) || start >= n
+                        || live < 0 || live > maxLive) {
+                    throw bad();
+                }
+            }
+        }
+        return f;
+    }
+
+    // The VR names must be the ones the renamer gives: every VR is below
+    // vrCount and defined at most once, above all of its uses, and each
+    // operand's next use is the next op reading its VR. Checked bottom up
+    // as the renamer works, with the next use of each VR so far
+    private static void checkNames(IRList ir, int vrCount) throws IOException {
+        final int[] vr = ir.vr, nu = ir.nu;
+        final int[] next = new int[vrCount];
+        Arrays.fill(next, Renamer.INF);
+        final int defined = -1; // in next: the VR's def is below, nothing above may name it
+        for (int i = ir.count - 1; i >= 0; i--) {
+            final int o = ir.opc[i];
+            final int b = 3 * i;
+            if (Op.isDef(o)) {
+                final int v = vr[b + 2];
+                if (v < 0 || v >= vrCount || next[v] == defined || nu[b + 2] != next[v]) throw bad();
+                next[v] = defined;
+            }
+            final int[] uses = Op.uses(o);
+            for (int slot : uses) {
+                final int v = vr[b + slot];
+                if (v < 0 || v >= vrCount || next[v] == defined || nu[b + slot] != next[v]) throw bad();
+            }
+            // after all the checks, as both uses of one VR share the next use below
+            for (int slot : uses) next[vr[b + slot]] = i + 1;
+        }
+    }
+
+    // Next use of op i from its stored distance, at most the block's end
+    private static int next(int i, int d, int n) throws IOException {
+        if (d < 0 || d > n - i) throw bad();
+        return d == 0 ? Renamer.INF : i + d;
+    }
+
+    private static IOException bad() {
+        return new IOException("bad IR file");
+    }
+
+    private static final class Writer {
+        private final WritableByteChannel out;
+        final byte[] buf = new byte[SIZE];
+        int pos;
+
+        Writer(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        void varint(int v) {
+            while ((v & ~0x7F) != 0) {
+                buf[pos++] = (byte) (v | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        // VR and next-use distance of one register operand
+        void name(IRList ir, int i, int slot) {
+            final int b = 3 * i + slot;
+            varint(ir.vr[b]);
+            varint(ir.nu[b] == Renamer.INF ? 0 : ir.nu[b] - i);
+        }
+
+        void drain() throws IOException {
+            final ByteBuffer view = ByteBuffer.wrap(buf, 0, pos);
+            while (view.hasRemaining()) out.write(view);
+            pos = 0;
+        }
+    }
+
+    // Refilled before each op, with room for the longest one
+    private static final class Reader {
+        private final ReadableByteChannel in;
+        final byte[] buf = new byte[SIZE];
+        int pos, end;
+        private long unread; // bytes of the file not yet in buf
+
+        Reader(ReadableByteChannel in, long size) {
+            this.in = in;
+            this.unread = size;
+        }
+
+        // Bytes of the file not yet taken
+        long remaining() {
+            return unread + end - pos;
+        }
+
+        // Move what is left to the front and read until full or at the end
+        void fill() throws IOException {
+            System.arraycopy(buf, pos, buf, 0, end - pos);
+            end -= pos;
+            pos = 0;
+            final ByteBuffer view = ByteBuffer.wrap(buf, end, buf.length - end);
+            int got;
+            while (view.hasRemaining() && (got = in.read(view)) >= 0) {
+                end += got;
+                unread -= got;
+            }
+        }
+
+        int varint() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (pos == end) throw new IOException("IR file is truncated");
+                final int b = buf[pos++];
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+            throw bad();
+        }
+    }
+}
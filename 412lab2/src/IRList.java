@@ -1,20 +1,109 @@
 package src;
 
-// Class representing the linked list block
+import java.io.IOException;
+import java.util.Arrays;
+
+// Class representing the block as parallel columns, one row per operation.
+// Operand slot s of op i lives at index 3*i + s of sr/vr/pr/nu.
 public final class IRList {
-    public Op head, tail;
+    public byte[] opc;   // Op.LOAD .. Op.NOP
+    public int[] line;   // Source line number (start of the op)
+    public int[] sr;     // Source registers, or the constant for loadI/output slot 0
+    public int[] vr;     // Filled in by Renamer
+    public int[] nu;     // Filled in by Renamer
+    public int[] pr;     // Filled in by Allocator
     public int count;
-    // Linked list helper to attend node and set pointers
-    public void append(Op node) {
-        if (head == null) head = tail = node;
-        else { tail.next = node; node.prev = tail; tail = node; }
-        count++;
+
+    // Spill code spliced in by Allocator, null until allocation
+    public SpillCode spill;
+
+    public IRList() { this(1024); }
+
+    public IRList(int capacity) {
+        capacity = Math.max(1, capacity);
+        opc = new byte[capacity];
+        line = new int[capacity];
+        sr = new int[3 * capacity];
+    }
+
+    // Append an op with its source operands, returns its index
+    public int append(int op, int ln, int s0, int s1, int s2) {
+        if (count == opc.length) grow();
+        int i = count++;
+        opc[i] = (byte) op;
+        line[i] = ln;
+        int b = 3 * i;
+        sr[b] = s0;
+        sr[b + 1] = s1;
+        sr[b + 2] = s2;
+        return i;
+    }
+
+    // Append every op of other, in order, with their source operands
+    public void appendAll(IRList other) {
+        while (opc.length - count < other.count) grow();
+        System.arraycopy(other.opc, 0, opc, count, other.count);
+        System.arraycopy(other.line, 0, line, count, other.count);
+        System.arraycopy(other.sr, 0, sr, 3 * count, 3 * other.count);
+        count += other.count;
+    }
+
+    private void grow() {
+        int cap = opc.length * 2;
+        opc = Arrays.copyOf(opc, cap);
+        line = Arrays.copyOf(line, cap);
+        sr = Arrays.copyOf(sr, 3 * cap);
+    }
+
+    // Print as ILOC with the register names in sr, nops left out
+    public void printCode(Emitter out) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (opc[i] == Op.NOP) continue;
+            final int b = 3 * i;
+            out.op(opc[i], sr[b], sr[b + 1], sr[b + 2]);
+        }
+    }
+
+    // Print for -r, one line per op: "loadI   [ val 5 ], [ ], [ sr1 ]"
+    public void print(Emitter out) throws IOException {
+        for (int i = 0; i < count; i++) {
+            final int o = opc[i];
+            out.opcode(o);
+            for (int pad = Op.name(o).length(); pad < 7; pad++) out.ch(' ');
+            out.ch(' ');
+            for (int slot = 0; slot < 3; slot++) {
+                if (slot > 0) out.ch(',').ch(' ');
+                box(out, i, slot);
+            }
+            out.nl();
+        }
     }
 
-    // Print for -r
-    public void print() {
-        for (Op p = head; p != null; p = p.next) {
-            System.out.println(p); // uses Op.toString() in reference style
+    // Put registers in SR array.
+    private void box(Emitter out, int i, int slot) throws IOException {
+        final int v = sr[3 * i + slot];
+        switch (opc[i]) {
+            case Op.LOADI:
+            case Op.OUTPUT:
+                if (slot == 0) { out.text("[ val ").num(v).text(" ]"); return; } // constant
+                if (slot == 2 && opc[i] == Op.LOADI) { out.text("[ sr").num(v).text(" ]"); return; } // dest
+                break;
+            case Op.LOAD:   // load rS => rD
+            case Op.STORE:  // store rS => rD
+                if (slot == 1) break;
+                out.text("[ sr").num(v).text(" ]");
+                return;
+            case Op.ADD:
+            case Op.SUB:
+            case Op.MULT:
+            case Op.LSHIFT:
+            case Op.RSHIFT:
+                // all three used: sr0, sr1, sr2
+                out.text("[ sr").num(v).text(" ]");
+                return;
+            default:
+                break;
         }
+        out.text("[ ]");
     }
 }
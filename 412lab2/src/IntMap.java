@@ -0,0 +1,78 @@
+package src;
+
+import java.util.Arrays;
+
+// Open-addressing map from int keys to int values, without boxing. Linear
+// probing over a power-of-two table kept at most half full; no removal.
+public final class IntMap {
+    private static final int FREE = Integer.MIN_VALUE; // key of an empty bucket
+
+    private int[] keys;
+    private int[] vals;
+    private int mask;
+    private int size;
+    private boolean hasFreeKey; // FREE itself is stored out of line
+    private int freeKeyVal;
+
+    public IntMap() { this(16); }
+
+    public IntMap(int expected) {
+        int cap = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        keys = new int[cap];
+        Arrays.fill(keys, FREE);
+        vals = new int[cap];
+        mask = cap - 1;
+    }
+
+    public int size() {
+        return size + (hasFreeKey ? 1 : 0);
+    }
+
+    // Value of key, or absent if it has none
+    public int get(int key, int absent) {
+        if (key == FREE) return hasFreeKey ? freeKeyVal : absent;
+        for (int h = hash(key) & mask; ; h = (h + 1) & mask) {
+            final int k = keys[h];
+            if (k == key) return vals[h];
+            if (k == FREE) return absent;
+        }
+    }
+
+    public void put(int key, int val) {
+        if (key == FREE) {
+            hasFreeKey = true;
+            freeKeyVal = val;
+            return;
+        }
+        int h = hash(key) & mask;
+        for (; keys[h] != FREE; h = (h + 1) & mask) {
+            if (keys[h] == key) {
+                vals[h] = val;
+                return;
+            }
+        }
+        keys[h] = key;
+        vals[h] = val;
+        if (++size * 2 > keys.length) rehash();
+    }
+
+    private void rehash() {
+        final int[] oldKeys = keys, oldVals = vals;
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        vals = new int[keys.length];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) continue;
+            int h = hash(oldKeys[i]) & mask;
+            while (keys[h] != FREE) h = (h + 1) & mask;
+            keys[h] = oldKeys[i];
+            vals[h] = oldVals[i];
+        }
+    }
+
+    private static int hash(int k) {
+        final int h = k * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,117 @@
+package src;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Custom JFR events for 412alloc, recorded with e.g.
+//
+//     java -XX:StartFlightRecording=filename=alloc.jfr -cp build src.lab2 8 big.i
+//     jfr print --events "edu.rice.comp412.*" alloc.jfr
+//
+// Only Stats touches this class, and only once it has found jdk.jfr, so
+// lab2 still runs on a Java 8 without Flight Recorder.
+final class JfrEvents {
+    private JfrEvents() {}
+
+    @Name("edu.rice.comp412.Phase")
+    @Label("Compiler Phase")
+    @Category("412alloc")
+    @Description("One phase of compiling an input: scan, parse, rename, schedule, allocate or emit")
+    static final class Phase extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Input")
+        String input;
+        @Label("Ops")
+        int ops;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("edu.rice.comp412.Allocation")
+    @Label("Register Allocation")
+    @Category("412alloc")
+    @Description("Code the allocator inserted and the cost classes of the values it evicted")
+    static final class Allocation extends Event {
+        @Label("Input")
+        String input;
+        @Label("Ops")
+        int ops;
+        @Label("Registers")
+        int k;
+        @Label("Inserted Ops")
+        long inserted;
+        @Label("Spill Stores")
+        long spillStores;
+        @Label("Reloads")
+        long reloads;
+        @Label("Reloads From Original Address")
+        long memReloads;
+        @Label("Rematerializations")
+        long remats;
+        @Label("Address loadIs")
+        long addrLoadIs;
+        @Label("Address loadIs Saved")
+        long addrReused;
+        @Label("Spill Slots")
+        int spillSlots;
+        @Label("Dirty Victims")
+        long dirtyVictims;
+        @Label("Clean Victims")
+        long cleanVictims;
+        @Label("Rematerializable Victims")
+        long rematVictims;
+    }
+
+    // Asking for the event type sets up Flight Recorder, which costs more
+    // than a small compile, so only once something has started it
+    static boolean recording() {
+        return FlightRecorder.isInitialized() && EventType.getEventType(Phase.class).isEnabled();
+    }
+
+    static Object begin() {
+        Phase e = new Phase();
+        e.begin();
+        return e;
+    }
+
+    static void phase(Object open, String phase, String input, int ops, long allocated) {
+        Phase e = (Phase) open;
+        e.end();
+        if (e.shouldCommit()) {
+            e.phase = phase;
+            e.input = input;
+            e.ops = ops;
+            e.allocated = allocated;
+            e.commit();
+        }
+    }
+
+    static void allocation(Stats s) {
+        Allocation e = new Allocation();
+        if (e.shouldCommit()) {
+            e.input = s.input;
+            e.ops = s.ops;
+            e.k = s.k;
+            e.inserted = s.inserted;
+            e.spillStores = s.spillStores;
+            e.reloads = s.reloads;
+            e.memReloads = s.memReloads;
+            e.remats = s.remats;
+            e.addrLoadIs = s.addrLoadIs;
+            e.addrReused = s.addrReused;
+            e.spillSlots = s.spillSlots;
+            e.dirtyVictims = s.victims[0];
+            e.cleanVictims = s.victims[1];
+            e.rematVictims = s.victims[2];
+            e.commit();
+        }
+    }
+}
@@ -1,89 +1,62 @@
 package src;
 
-import java.util.Objects;
-
-// Class representing a node in the linked list
+// Opcodes and their operand shapes. An operation itself is just an index
+// into the columns of an IRList, so this class only holds per-opcode tables.
 public final class Op {
-    public enum Opcode {
-        LOAD, LOADI, STORE,
-        ADD, SUB, MULT, LSHIFT, RSHIFT,
-        OUTPUT, NOP
+    public static final int LOAD   = 0;
+    public static final int LOADI  = 1;
+    public static final int STORE  = 2;
+    public static final int ADD    = 3;
+    public static final int SUB    = 4;
+    public static final int MULT   = 5;
+    public static final int LSHIFT = 6;
+    public static final int RSHIFT = 7;
+    public static final int OUTPUT = 8;
+    public static final int NOP    = 9;
+
+    private static final String[] NAME = {
+        "load", "loadI", "store", "add", "sub", "mult", "lshift", "rshift", "output", "nop"
+    };
+
+    // Which slots hold a register read by the op. Shared, never modify.
+    private static final int[] NO_USES = {};
+    private static final int[] USE_0   = {0};      // load rA => rD
+    private static final int[] USE_02  = {0, 2};   // store rVal => rAddr
+    private static final int[] USE_01  = {0, 1};   // rX, rY => rZ
+    private static final int[][] USES = {
+        USE_0, NO_USES, USE_02, USE_01, USE_01, USE_01, USE_01, USE_01, NO_USES, NO_USES
+    };
+
+    private Op() {}
+
+    public static String name(int opc) {
+        return (opc >= 0 && opc < NAME.length) ? NAME[opc] : "<unk>";
     }
 
-    // Doubly-linked list, node has prev and next
-    public Op prev, next;
-
-    // Source line number (start of the op)
-    public int line;
-
-    // Which operation
-    public Opcode opc;
-
-    // Operand slots
-    public int[] sr = new int[3];
-    public int[] vr = new int[3];
-    public int[] pr = new int[3];
-    public int[] nu = new int[3];
-
-    // Represents 1 node in linked list
-    public Op(int line, Opcode opc) {
-        this.line = line;
-        this.opc  = Objects.requireNonNull(opc);
+    // rZ in slot 2 is a DEF
+    public static boolean isDef(int opc) {
+        return opc <= RSHIFT && opc != STORE;
     }
 
-    private String opcodeName() {
-        switch (opc) {
-            case LOADI:  return "loadI";
-            case LOAD:   return "load";
-            case STORE:  return "store";
-            case ADD:    return "add";
-            case SUB:    return "sub";
-            case MULT:   return "mult";
-            case LSHIFT: return "lshift";
-            case RSHIFT: return "rshift";
-            case OUTPUT: return "output";
-            case NOP:    return "nop";
-            default:     return "<unk>";
-        }
+    public static boolean isArith(int opc) {
+        return opc >= ADD && opc <= RSHIFT;
     }
 
-    // Put registers in SR array.
-    private String slotText(int i) {
+    // Value of arithmetic op opc on a and b. Registers are 32-bit and wrap,
+    // shift counts use their low 5 bits and rshift keeps the sign
+    public static int eval(int opc, int a, int b) {
         switch (opc) {
-            case LOADI:
-                if (i == 0) return "val " + sr[0]; // constant
-                if (i == 2) return "sr" + sr[2];   // dest
-                return "";
-            case OUTPUT:
-                if (i == 0) return "val " + sr[0];
-                return "";
-            case LOAD:   // load rS => rD
-            case STORE:  // store rS => rD
-                if (i == 0) return "sr" + sr[0];
-                if (i == 2) return "sr" + sr[2];
-                return "";
-            case ADD:
-            case SUB:
-            case MULT:
-            case LSHIFT:
-            case RSHIFT:
-                // all three used: sr0, sr1, sr2
-                return "sr" + sr[i];
-            case NOP:
-                return "";
-            default:
-                return "";
+            case ADD:    return a + b;
+            case SUB:    return a - b;
+            case MULT:   return a * b;
+            case LSHIFT: return a << (b & 31);
+            case RSHIFT: return a >> (b & 31);
+            default: throw new IllegalArgumentException("not arithmetic: " + name(opc));
         }
     }
 
-    @Override public String toString() {
-        String s0 = box(slotText(0));
-        String s1 = box(slotText(1));
-        String s2 = box(slotText(2));
-        return String.format("%-7s %s, %s, %s", opcodeName(), s0, s1, s2);
-    }
-
-    private static String box(String v) {
-        return (v == null || v.isEmpty()) ? "[ ]" : "[ " + v + " ]";
+    // Register use slots of opc, as a shared table
+    public static int[] uses(int opc) {
+        return USES[opc];
     }
 }
@@ -0,0 +1,262 @@
+package src;
+
+// Optimizations on the parsed block, before renaming. Each pass returns the
+// rewritten block as a new IRList, ready to be renamed.
+public final class Optimizer {
+    private Optimizer() {}
+
+    // Everything -O does: fold, then value numbering on the renamed block,
+    // with dead code removed after each
+    public static IRList optimize(IRList ir, Stats stats) {
+        ir = fold(ir, stats);
+        Renamer.rename(ir);
+        Renamer.adoptVR(ir);
+        ir.vr = ir.nu = null;
+        return valueNumber(ir, stats);
+    }
+
+    // Forward constant propagation. An arithmetic op whose operands are
+    // both known becomes a loadI of its value, and a mult by a known power
+    // of two becomes an lshift. Rematerializable loadIs then replace
+    // computed values, so they never need a spill slot. The loadIs left
+    // without a use are dropped afterwards. Works on source names.
+    //
+    // Only results >= 0 are folded, as a negative constant could not be
+    // read back by the scanner; the value is still propagated. Shift counts
+    // come from registers, so an lshift reuses a register that already
+    // holds the count, or gets a fresh name loaded with it. Names are
+    // numbered densely first, so the tables are the size of the block.
+    public static IRList fold(IRList ir, Stats stats) {
+        final int n = ir.count;
+        final int[] dense = new int[3 * n];
+        final int names = Renamer.denseNames(ir, dense) + 1;
+        final int temp = names - 1; // holds shift counts nobody else has
+        final boolean[] known = new boolean[names];
+        final int[] value = new int[names];
+        final IntMap holder = new IntMap(); // constant -> a name that held it
+        final IRList out = new IRList(n + n / 8);
+        int folded = 0, reduced = 0;
+
+        for (int i = 0; i < n; i++) {
+            final int o = ir.opc[i];
+            final int b = 3 * i;
+            final int s0 = (o == Op.LOADI || o == Op.OUTPUT) ? ir.sr[b] : dense[b];
+            final int s1 = dense[b + 1], s2 = dense[b + 2];
+            if (!Op.isDef(o)) {
+                out.append(o, ir.line[i], s0, s1, s2);
+                continue;
+            }
+            if (o == Op.LOADI) {
+                out.append(o, ir.line[i], s0, s1, s2);
+                define(known, value, holder, s2, true, s0);
+                continue;
+            }
+            if (o == Op.LOAD) {
+                out.append(o, ir.line[i], s0, s1, s2);
+                define(known, value, holder, s2, false, 0);
+                continue;
+            }
+
+            // Arithmetic
+            final boolean k0 = known[s0], k1 = known[s1];
+            if (k0 && k1) {
+                final int v = Op.eval(o, value[s0], value[s1]);
+                if (v >= 0) {
+                    out.append(Op.LOADI, ir.line[i], v, 0, s2);
+                    folded++;
+                } else {
+                    out.append(o, ir.line[i], s0, s1, s2);
+                }
+                define(known, value, holder, s2, true, v);
+                continue;
+            }
+            if (o == Op.MULT && (k0 || k1)) {
+                final int c = k0 ? value[s0] : value[s1];
+                final int x = k0 ? s1 : s0;
+                if (c > 0 && (c & (c - 1)) == 0) {
+                    final int shift = Integer.numberOfTrailingZeros(c);
+                    int t = holder.get(shift, -1);
+                    if (t < 0 || !known[t] || value[t] != shift) {
+                        // nobody holds the count any more; temp is past every source name
+                        t = temp;
+                        out.append(Op.LOADI, ir.line[i], shift, 0, t);
+                        define(known, value, holder, t, true, shift);
+                    }
+                    out.append(Op.LSHIFT, ir.line[i], x, t, s2);
+                    reduced++;
+                    define(known, value, holder, s2, false, 0);
+                    continue;
+                }
+            }
+            out.append(o, ir.line[i], s0, s1, s2);
+            define(known, value, holder, s2, false, 0);
+        }
+
+        IRList result = deadCode(out, names);
+        if (stats != null) {
+            stats.folded += folded;
+            stats.reduced += reduced;
+            stats.removed += out.count - result.count;
+        }
+        return result;
+    }
+
+    private static void define(boolean[] known, int[] value, IntMap holder, int r, boolean isConst, int v) {
+        known[r] = isConst;
+        value[r] = v;
+        if (isConst) holder.put(v, r);
+    }
+
+    // Local value numbering over a block whose names each have one def, as
+    // left by Renamer.adoptVR. An op computing a value some earlier op already
+    // holds becomes a nop and later uses read the earlier name instead, which
+    // stays valid as nothing redefines it. add and mult match either operand
+    // order. A load reuses the last load of, or store to, the same address
+    // name as long as no store came in between; store and output always stay.
+    public static IRList valueNumber(IRList ir, Stats stats) {
+        final int n = ir.count;
+        final byte[] opc = ir.opc;
+        final int[] sr = ir.sr;
+        // Renamed in place: denseNames reads each operand before writing it
+        final int names = Renamer.denseNames(ir, sr);
+        final int[] rep = new int[names]; // name later uses read instead
+        for (int r = 0; r < names; r++) rep[r] = r;
+        final IntMap constants = new IntMap(); // loadI constant -> name
+        final IntMap memory = new IntMap();    // address name -> op that last read or wrote it
+        final Exprs exprs = new Exprs(n);
+        int lastStore = -1;
+        int reused = 0;
+
+        for (int i = 0; i < n; i++) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            for (int slot : Op.uses(o)) sr[b + slot] = rep[sr[b + slot]];
+            int same = -1;
+            switch (o) {
+                case Op.LOADI:
+                    same = constants.get(sr[b], -1);
+                    if (same < 0) constants.put(sr[b], sr[b + 2]);
+                    break;
+                case Op.LOAD: {
+                    final int j = memory.get(sr[b], -1);
+                    if (j >= 0 && j >= lastStore) { // nothing stored since
+                        same = (opc[j] == Op.LOAD) ? sr[3 * j + 2] : sr[3 * j];
+                    } else {
+                        memory.put(sr[b], i);
+                    }
+                    break;
+                }
+                case Op.STORE:
+                    lastStore = i; // may alias any address, only this one is known
+                    memory.put(sr[b + 2], i);
+                    break;
+                case Op.ADD: case Op.SUB: case Op.MULT: case Op.LSHIFT: case Op.RSHIFT: {
+                    int x = sr[b], y = sr[b + 1];
+                    if ((o == Op.ADD || o == Op.MULT) && x > y) {
+                        x = sr[b + 1];
+                        y = sr[b];
+                    }
+                    same = exprs.putIfAbsent(o, x, y, sr[b + 2]);
+                    break;
+                }
+                default:
+                    break;
+            }
+            if (same >= 0) {
+                rep[sr[b + 2]] = same;
+                opc[i] = Op.NOP;
+                reused++;
+            }
+        }
+
+        IRList result = deadCode(ir, names);
+        if (stats != null) {
+            stats.reused += reused;
+            stats.removed += n - reused - result.count;
+        }
+        return result;
+    }
+
+    // Backward pass dropping nops and every def that is redefined, or
+    // reaches the end of the block, before anything reads it. Taking out a
+    // def can leave its operands dead too, so this goes by liveness rather
+    // than the next-use distances of the old order.
+    private static IRList deadCode(IRList ir, int names) {
+        final boolean[] live = new boolean[names];
+        final boolean[] keep = new boolean[ir.count];
+        int kept = 0;
+        for (int i = ir.count - 1; i >= 0; i--) {
+            final int o = ir.opc[i];
+            final int b = 3 * i;
+            if (o == Op.NOP) continue;
+            if (Op.isDef(o)) {
+                if (!live[ir.sr[b + 2]]) continue;
+                live[ir.sr[b + 2]] = false;
+            }
+            keep[i] = true;
+            kept++;
+            for (int slot : Op.uses(o)) live[ir.sr[b + slot]] = true;
+        }
+        if (kept == ir.count) return ir;
+        final IRList out = new IRList(kept);
+        for (int i = 0; i < ir.count; i++) {
+            if (!keep[i]) continue;
+            final int b = 3 * i;
+            out.append(ir.opc[i], ir.line[i], ir.sr[b], ir.sr[b + 1], ir.sr[b + 2]);
+        }
+        return out;
+    }
+
+    // Expressions (opcode, operand, operand) -> name holding the value.
+    // Open addressing with linear probing, kept at most half full.
+    private static final class Exprs {
+        private int[] key; // opcode + 1 and operands, 3 ints per bucket; 0 opcode = empty
+        private int[] val;
+        private int mask;
+        private int size;
+
+        Exprs(int expected) {
+            int cap = Integer.highestOneBit(Math.max(8, Math.min(expected, 1 << 20)) * 2 - 1) << 1;
+            key = new int[3 * cap];
+            val = new int[cap];
+            mask = cap - 1;
+        }
+
+        // Name already holding (o, x, y), or -1 after recording it as name
+        int putIfAbsent(int o, int x, int y, int name) {
+            int h = hash(o, x, y) & mask;
+            for (; key[3 * h] != 0; h = (h + 1) & mask) {
+                final int k = 3 * h;
+                if (key[k] == o + 1 && key[k + 1] == x && key[k + 2] == y) return val[h];
+            }
+            set(h, o, x, y, name);
+            if (++size * 2 > val.length) rehash();
+            return -1;
+        }
+
+        private void set(int h, int o, int x, int y, int name) {
+            key[3 * h] = o + 1;
+            key[3 * h + 1] = x;
+            key[3 * h + 2] = y;
+            val[h] = name;
+        }
+
+        private void rehash() {
+            final int[] oldKey = key, oldVal = val;
+            key = new int[2 * oldKey.length];
+            val = new int[2 * oldVal.length];
+            mask = val.length - 1;
+            for (int i = 0; i < oldVal.length; i++) {
+                if (oldKey[3 * i] == 0) continue;
+                int h = hash(oldKey[3 * i] - 1, oldKey[3 * i + 1], oldKey[3 * i + 2]) & mask;
+                while (key[3 * h] != 0) h = (h + 1) & mask;
+                set(h, oldKey[3 * i] - 1, oldKey[3 * i + 1], oldKey[3 * i + 2], oldVal[i]);
+            }
+        }
+
+        private static int hash(int o, int x, int y) {
+            final int h = (x * 0x9E3779B9 + y) * 0x85EBCA6B + o;
+            return h ^ (h >>> 15);
+        }
+    }
+}
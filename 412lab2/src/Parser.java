@@ -4,7 +4,7 @@ import java.io.IOException;
 
 public final class Parser {
     private final Scanner sc;
-    private Token tok;
+    private Token tok; // the scanner's cursor, refilled by every advance()
 
     private final IRList ir = new IRList();
     private boolean hadErrors = false;
@@ -31,7 +31,7 @@ public final class Parser {
     }
     // Helper to print syntax error in correct format
     private void syntaxError(int line, String msg) {
-        System.err.printf("ERROR %d:\t%s%n", line, msg);
+        sc.err.printf("ERROR %d:\t%s%n", line, msg);
         hadErrors = true;
     }
     
@@ -45,49 +45,50 @@ public final class Parser {
         if (tok.getCategory() == Token.TokenCategory.NEWLINE) advance();
     }
 
-    // Helpers to determine if grammar is correct
-    // Reg should have constant after
-    private Integer expectReg(int errLine, String msg) throws IOException {
+    // Helpers to determine if grammar is correct. Messages are only built on
+    // the error path, as "Missing <what> in <opName>."
+    // Reg should have constant after, returns -1 if missing
+    private int expectReg(int errLine, String what, String opName) throws IOException {
         if (tok.getCategory() == Token.TokenCategory.REG) {
             int r = tok.getIntValue();
             advance();
             return r;
         }
-        syntaxError(errLine, msg);
+        syntaxError(errLine, "Missing " + what + " in " + opName + ".");
         recoverToEOL();
-        return null;
+        return -1;
     }
 
-    // Constant should be valid integer
-    private Integer expectConst(int errLine, String msg) throws IOException {
+    // Constant should be valid integer, returns -1 if missing
+    private int expectConst(int errLine, String what, String opName) throws IOException {
         if (tok.getCategory() == Token.TokenCategory.CONST) {
             int v = tok.getIntValue();
             advance();
             return v;
         }
-        syntaxError(errLine, msg);
+        syntaxError(errLine, "Missing " + what + " in " + opName + ".");
         recoverToEOL();
-        return null;
+        return -1;
     }
 
     // Comma should be of type COMMA
-    private boolean expectComma(int errLine, String msg) throws IOException {
+    private boolean expectComma(int errLine, String opName) throws IOException {
         if (tok.getCategory() == Token.TokenCategory.COMMA) { advance(); return true; }
-        syntaxError(errLine, msg);
+        syntaxError(errLine, "Missing comma in " + opName + ".");
         recoverToEOL();
         return false;
     }
     
     // Into should be of type INTO
-    private boolean expectInto(int errLine, String msg) throws IOException {
+    private boolean expectInto(int errLine, String opName) throws IOException {
         if (tok.getCategory() == Token.TokenCategory.INTO) { advance(); return true; }
-        syntaxError(errLine, msg);
+        syntaxError(errLine, "Missing '=>' in " + opName + ".");
         recoverToEOL();
         return false;
     }
 
     // Main parsing function, consumes tokens from scanner.
-    // builds Op nodes for each relevant token
+    // appends an op to the IRList for each complete operation
     public IRList parse() throws IOException {
         advance();                // Get next token from scanner
         while (true) {
@@ -101,18 +102,15 @@ public final class Parser {
                 case LOADI: {
                     advance(); // consume 'loadI'
                     // Check grammar
-                    Integer constant  = expectConst(line, "Missing constant in loadI.");
-                    if (constant == null) break;
-
-                    if (!expectInto(line, "Missing '=>' in loadI.")) break;
-                    Integer regDest = expectReg(line, "Missing destination register in loadI.");
-                    if (regDest == null) break;
-
-                    // Create new Op node
-                    Op op = new Op(line, Op.Opcode.LOADI);
-                    op.sr[0] = constant;
-                    op.sr[2] = regDest;
-                    ir.append(op);
+                    int constant = expectConst(line, "constant", "loadI");
+                    if (constant < 0) break;
+
+                    if (!expectInto(line, "loadI")) break;
+                    int regDest = expectReg(line, "destination register", "loadI");
+                    if (regDest < 0) break;
+
+                    // Append new op
+                    ir.append(Op.LOADI, line, constant, 0, regDest);
                     break;
                 }
 
@@ -121,26 +119,22 @@ public final class Parser {
                     // Check which lexeme it is
                     if (lx == Token.TokenLexeme.LOAD_LEX) {
                         advance();
-                        Integer regSource = expectReg(line, "Missing source register in load.");
-                        if (regSource == null) break;
-                        if (!expectInto(line, "Missing '=>' in load.")) break;
-                        Integer regDest = expectReg(line, "Missing destination register in load.");
-                        if (regDest == null) break;
-
-                        Op op = new Op(line, Op.Opcode.LOAD);
-                        op.sr[0] = regSource; op.sr[2] = regDest;
-                        ir.append(op);
+                        int regSource = expectReg(line, "source register", "load");
+                        if (regSource < 0) break;
+                        if (!expectInto(line, "load")) break;
+                        int regDest = expectReg(line, "destination register", "load");
+                        if (regDest < 0) break;
+
+                        ir.append(Op.LOAD, line, regSource, 0, regDest);
                     } else if (lx == Token.TokenLexeme.STORE_LEX) {
                         advance();
-                        Integer regSource = expectReg(line, "Missing source register in store.");
-                        if (regSource == null) break;
-                        if (!expectInto(line, "Missing '=>' in store.")) break;
-                        Integer regDest = expectReg(line, "Missing destination register in store.");
-                        if (regDest == null) break;
-
-                        Op op = new Op(line, Op.Opcode.STORE);
-                        op.sr[0] = regSource; op.sr[2] = regDest;
-                        ir.append(op);
+                        int regSource = expectReg(line, "source register", "store");
+                        if (regSource < 0) break;
+                        if (!expectInto(line, "store")) break;
+                        int regDest = expectReg(line, "destination register", "store");
+                        if (regDest < 0) break;
+
+                        ir.append(Op.STORE, line, regSource, 0, regDest);
                     } else {
                         syntaxError(line, "Unrecognized memory operation.");
                         recoverToEOL();
@@ -149,53 +143,49 @@ public final class Parser {
                 }
 
                 case ARITHOP: {
-                    final Op.Opcode opc;
+                    final int opc;
                     switch (tok.getLexeme()) {
-                        case ADD_LEX:   opc = Op.Opcode.ADD;   break;
-                        case SUB_LEX:   opc = Op.Opcode.SUB;   break;
-                        case MULT_LEX:  opc = Op.Opcode.MULT;  break;
-                        case LSHIFT_LEX:opc = Op.Opcode.LSHIFT;break;
-                        case RSHIFT_LEX:opc = Op.Opcode.RSHIFT;break;
+                        case ADD_LEX:   opc = Op.ADD;   break;
+                        case SUB_LEX:   opc = Op.SUB;   break;
+                        case MULT_LEX:  opc = Op.MULT;  break;
+                        case LSHIFT_LEX:opc = Op.LSHIFT;break;
+                        case RSHIFT_LEX:opc = Op.RSHIFT;break;
                         default:
                             syntaxError(line, "Unrecognized arithmetic operation.");
                             recoverToEOL();
-                            opc = null;
+                            opc = -1;
                             break;
                     }
                     if (tok.getCategory() != Token.TokenCategory.ARITHOP) break;
 
                     advance(); // consume the opcode token
 
-                    Integer regSource1 = expectReg(line, "Missing first source register in " + opcName(opc) + ".");
-                    if (regSource1 == null) break;
-                    if (!expectComma(line, "Missing comma in " + opcName(opc) + ".")) break;
-                    Integer regSource2 = expectReg(line, "Missing second source register in " + opcName(opc) + ".");
-                    if (regSource2 == null) break;
-                    if (!expectInto(line, "Missing '=>' in " + opcName(opc) + ".")) break;
-                    Integer regDest  = expectReg(line, "Missing destination register in " + opcName(opc) + ".");
-                    if (regDest == null) break;
-
-                    Op op = new Op(line, opc);
-                    op.sr[0] = regSource1; op.sr[1] = regSource2; op.sr[2] = regDest;
-                    ir.append(op);
+                    final String name = Op.name(opc);
+                    int regSource1 = expectReg(line, "first source register", name);
+                    if (regSource1 < 0) break;
+                    if (!expectComma(line, name)) break;
+                    int regSource2 = expectReg(line, "second source register", name);
+                    if (regSource2 < 0) break;
+                    if (!expectInto(line, name)) break;
+                    int regDest  = expectReg(line, "destination register", name);
+                    if (regDest < 0) break;
+
+                    ir.append(opc, line, regSource1, regSource2, regDest);
                     break;
                 }
 
                 case OUTPUT: {
                     advance(); // 'output'
-                    Integer constant = expectConst(line, "Missing constant in output.");
-                    if (constant == null) break;
+                    int constant = expectConst(line, "constant", "output");
+                    if (constant < 0) break;
 
-                    Op op = new Op(line, Op.Opcode.OUTPUT);
-                    op.sr[0] = constant;
-                    ir.append(op);
+                    ir.append(Op.OUTPUT, line, constant, 0, 0);
                     break;
                 }
 
                 case NOP: {
                     advance(); // 'nop'
-                    Op op = new Op(line, Op.Opcode.NOP);
-                    ir.append(op);
+                    ir.append(Op.NOP, line, 0, 0, 0);
                     break;
                 }
 
@@ -207,15 +197,4 @@ public final class Parser {
         }
         return ir;
     }
-
-    private static String opcName(Op.Opcode o) {
-        switch (o) {
-            case ADD: return "add";
-            case SUB: return "sub";
-            case MULT: return "mult";
-            case LSHIFT: return "lshift";
-            case RSHIFT: return "rshift";
-            default: return o.name().toLowerCase();
-        }
-    }
 }
@@ -1,9 +1,18 @@
 package src;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 public class Renamer {
     int maxLive;
     int vrCount;
-    static int INF = Integer.MAX_VALUE;
+    static final int INF = Integer.MAX_VALUE;
+
+    // Regions of the block, split wherever no VR is live between two ops.
+    // Region r starts at op regionStart[r] and needs regionMaxLive[r] registers
+    int regions;
+    int[] regionStart;
+    int[] regionMaxLive;
 
     // Constructor that represents the result of the renamer being ran on an IRList
     public Renamer(int maxLive, int vrCount) {
@@ -14,137 +23,157 @@ public class Renamer {
     // Main rename function that walks the IRList bottom up, keeps track of state with srToVr and NU, and rename registers.
     // Returns Renamer result object with maxLiveSeen and vrName
     public static Renamer rename(IRList ir) {
-        int maxSR = maxSR(ir);
-        int cap = Math.max(1, maxSR + 1);
-        int[] srToVR = new int[cap];
-        int[] nextUse = new int[cap];
-        // Initialize arrays as -1/INF for now
-        for (int i = 0; i < cap; i++) {
-            srToVR[i] = -1;
-        }
-        for (int i = 0; i < cap; i++) {
-            nextUse[i] = INF;
-        }
+        final int n = ir.count;
+        final byte[] opc = ir.opc;
+        final int[] vr = ir.vr = new int[3 * n];
+        final int[] nu = ir.nu = new int[3 * n];
+
+        // Register operands hold dense names in vr until the walk renames them
+        final int cap = Math.max(1, denseNames(ir, vr));
+        final int[] srToVR = new int[cap];
+        final int[] nextUse = new int[cap];
+        Arrays.fill(srToVR, -1);
+        Arrays.fill(nextUse, INF);
+        final int[] names = new int[3];
 
         int vrName = 0;
-        int index = ir.count;
         int live = 0;
         int maxLiveSeen = 0;
-        // Bottom-up scan through IRList
-        for (Op n = ir.tail; n != null; n = n.prev) {
+        // Regions are found bottom up, so they are recorded in reverse
+        int regions = 0;
+        int regionMax = 0;
+        int[] starts = new int[16];
+        int[] maxes = new int[16];
+        // Bottom-up scan through IRList, op i is numbered i + 1 for next-use distances
+        for (int i = n - 1; i >= 0; i--) {
+            final int o = opc[i];
+            final int b = 3 * i;
             // def first (slot 2)
-            if (isDef(n)) {
-                int s = n.sr[2];
-                if (srToVR[s] == -1) { // Unused def
+            if (Op.isDef(o)) {
+                int s = vr[b + 2];
+                if (srToVR[s] == -1) { // Unused def, still needs a register for a moment
                     srToVR[s] = vrName++;  
+                    if (live + 1 > regionMax) regionMax = live + 1;
                 } else { // Overrwrite
                     live--;                  
                 }
-                n.vr[2] = srToVR[s];
-                n.nu[2] = nextUse[s];
+                vr[b + 2] = srToVR[s];
+                nu[b + 2] = nextUse[s];
                 srToVR[s] = -1;  
                 nextUse[s] = INF;
             }
 
             // use (slots depend on opcode)
-            int[] useSlots = useSlotIdx(n);
-            for (int slot : useSlots) {
-                int s = n.sr[slot];
+            final int[] useSlots = Op.uses(o);
+            for (int u = 0; u < useSlots.length; u++) {
+                final int slot = useSlots[u];
+                int s = names[u] = vr[b + slot];
                 if (srToVR[s] == -1) { // First time
                     srToVR[s] = vrName++;
                     live++;
-                if (live > maxLiveSeen) 
-                    maxLiveSeen = live;
+                if (live > regionMax) 
+                    regionMax = live;
                 }
-                n.vr[slot] = srToVR[s];
-                n.nu[slot] = nextUse[s];
+                vr[b + slot] = srToVR[s];
+                nu[b + slot] = nextUse[s];
             }
 
         // After uses: mark this instruction as next-use for those SRs
-        for (int slot : useSlots) nextUse[n.sr[slot]] = index;
+        for (int u = 0; u < useSlots.length; u++) nextUse[names[u]] = i + 1;
 
-        index--;
+        // Nothing live above this op: it starts a region
+        if (live == 0 || i == 0) {
+            if (regions == starts.length) {
+                starts = Arrays.copyOf(starts, regions * 2);
+                maxes = Arrays.copyOf(maxes, regions * 2);
+            }
+            starts[regions] = i;
+            maxes[regions] = regionMax;
+            regions++;
+            if (regionMax > maxLiveSeen) maxLiveSeen = regionMax;
+            regionMax = 0;
+        }
         }
 
-        return new Renamer(maxLiveSeen, vrName);
+        Renamer result = new Renamer(maxLiveSeen, vrName);
+        result.regions = regions;
+        result.regionStart = new int[regions];
+        result.regionMaxLive = new int[regions];
+        for (int r = 0; r < regions; r++) {
+            result.regionStart[r] = starts[regions - 1 - r];
+            result.regionMaxLive[r] = maxes[regions - 1 - r];
+        }
+        return result;
     }
 
     /**
     Helper functions for rename function
     */ 
-    // Checks if a given node is a definition
-    private static boolean isDef(Op n) {
-        switch (n.opc) {
-        case ADD: case SUB: case MULT: case LSHIFT: case RSHIFT:
-        case LOAD: case LOADI:
-            return true;                    // rZ in slot 2 is a DEF
-        case STORE: case OUTPUT: case NOP:
-        default:
-            return false;
+    // Writes a dense name for the register in each register operand of ir
+    // to the same slot of names, and returns how many names it used. Names
+    // up to about the operand count are used as they are; a block with wider
+    // spaced names, say one r2000000000, has them numbered in order of first
+    // appearance instead, so the tables stay the size of the block
+    static int denseNames(IRList ir, int[] names) {
+        final byte[] opc = ir.opc;
+        final int[] sr = ir.sr;
+        int max = -1;
+        for (int i = 0; i < ir.count; i++) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            for (int slot : Op.uses(o)) max = Math.max(max, sr[b + slot]);
+            if (Op.isDef(o)) max = Math.max(max, sr[b + 2]); // (loadI sr[0] is const)
         }
-    }
-    private static int[] useSlotIdx(Op n) {
-        switch (n.opc) {
-        case ADD: case SUB: case MULT: case LSHIFT: case RSHIFT:
-            return new int[] {0, 1};        // rX, rY => rZ
-        case LOAD: // address use
-            return new int[] {0};          
-        case STORE:
-            return new int[] {0, 2};        // store rVal => rAddr
-        case LOADI:
-        case OUTPUT:
-        case NOP:
-        default:
-            return new int[0];
+        if (max < 3L * ir.count + 64) {
+            for (int i = 0; i < ir.count; i++) {
+                final int o = opc[i];
+                final int b = 3 * i;
+                for (int slot : Op.uses(o)) names[b + slot] = sr[b + slot];
+                if (Op.isDef(o)) names[b + 2] = sr[b + 2];
+            }
+            return max + 1;
+        }
+        final IntMap dense = new IntMap();
+        for (int i = 0; i < ir.count; i++) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            for (int slot : Op.uses(o)) names[b + slot] = dense(dense, sr[b + slot]);
+            if (Op.isDef(o)) names[b + 2] = dense(dense, sr[b + 2]);
         }
+        return dense.size();
     }
 
-    // Finds the maxSR of a IRList
-    private static int maxSR(IRList ir) {
-        int max = -1;
-        for (Op p = ir.head; p != null; p = p.next) {
-        switch (p.opc) {
-            case ADD: case SUB: case MULT: case LSHIFT: case RSHIFT:
-            max = Math.max(max, p.sr[0]);
-            max = Math.max(max, p.sr[1]);
-            max = Math.max(max, p.sr[2]);
-            break;
-            case LOAD:
-            max = Math.max(max, p.sr[0]); // addr
-            max = Math.max(max, p.sr[2]); // dst
-            break;
-            case STORE:
-            max = Math.max(max, p.sr[0]); // val
-            max = Math.max(max, p.sr[2]); // addr
-            break;
-            case LOADI:
-            max = Math.max(max, p.sr[2]); // dst (sr[0] is const)
-            break;
-            case OUTPUT:
-            case NOP:
-            default:
-            break;
+    private static int dense(IntMap dense, int s) {
+        int d = dense.get(s, -1);
+        if (d < 0) {
+            d = dense.size();
+            dense.put(s, d);
         }
+        return d;
+    }
+
+    // Make the VR names the block's source names. Every name then has a
+    // single def, which frees later passes from anti and output dependences;
+    // vr and nu describe the old order and must be renamed again after any change
+    public static void adoptVR(IRList ir) {
+        for (int i = 0; i < ir.count; i++) {
+            final int o = ir.opc[i];
+            final int b = 3 * i;
+            for (int slot : Op.uses(o)) ir.sr[b + slot] = ir.vr[b + slot];
+            if (Op.isDef(o)) ir.sr[b + 2] = ir.vr[b + 2];
         }
-        return Math.max(max, 0);
     }
 
     // Prints the VR of each node, after renaming walk is done
-    public void printVR(IRList ir) {
-        for (Op n = ir.head; n != null; n = n.next) {
-            switch (n.opc) {
-                case ADD:    System.out.printf("add r%d, r%d => r%d%n",    n.vr[0], n.vr[1], n.vr[2]); break;
-                case SUB:    System.out.printf("sub r%d, r%d => r%d%n",    n.vr[0], n.vr[1], n.vr[2]); break;
-                case MULT:   System.out.printf("mult r%d, r%d => r%d%n",   n.vr[0], n.vr[1], n.vr[2]); break;
-                case LSHIFT: System.out.printf("lshift r%d, r%d => r%d%n", n.vr[0], n.vr[1], n.vr[2]); break;
-                case RSHIFT: System.out.printf("rshift r%d, r%d => r%d%n", n.vr[0], n.vr[1], n.vr[2]); break;
-                case LOAD:   System.out.printf("load r%d => r%d%n",        n.vr[0],           n.vr[2]); break;
-                case LOADI:  System.out.printf("loadI %d => r%d%n",        n.sr[0],           n.vr[2]); break;
-                case STORE:  System.out.printf("store r%d => r%d%n",       n.vr[0],           n.vr[2]); break;
-                case OUTPUT: System.out.printf("output %d%n",              n.sr[0]); break;
-                case NOP:    System.out.println("nop"); break;
-                }
+    public void printVR(IRList ir, Emitter out) throws IOException {
+        final int[] vr = ir.vr;
+        for (int i = 0; i < ir.count; i++) {
+            final int b = 3 * i;
+            final int o = ir.opc[i];
+            // loadI and output keep their constant
+            final int s0 = (o == Op.LOADI || o == Op.OUTPUT) ? ir.sr[b] : vr[b];
+            out.op(o, s0, vr[b + 1], vr[b + 2]);
         }
     }
 
-}
\ No newline at end of file
+}
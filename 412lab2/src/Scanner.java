@@ -1,29 +1,175 @@
 package src;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class Scanner {
-    private final BufferedReader reader;
+    // Files up to this size are mapped whole, bigger ones are streamed in chunks
+    private static final long MAP_LIMIT = Integer.MAX_VALUE;
+    private static final int CHUNK = 1 << 20;
+
+    private FileChannel channel; // only kept open while streaming chunks
+    private ByteBuffer buf;      // ILOC is pure ASCII, so we scan the raw bytes
     private int lineNumber;
-    private int ch;  // current char
+    private int ch;  // current byte, -1 at EOF
     private boolean lastReturnedNewLine = false;
     private boolean lexError;
+    private final Token tok = new Token(); // reused cursor, see Token
+    final PrintStream err; // where lexical (and the parser's syntax) errors go
+
+    // Opcode recognizer: a trie over the opcode spellings, one state per
+    // prefix, state 0 being "no move". MOVE[s * WIDTH + c] is the state
+    // after reading byte c in state s, ACCEPT[s] the opcode spelled by
+    // state s, if any, and STUCK[s] the error when state s has no move on
+    // the next byte and spells no opcode. A new opcode needs its lexeme in
+    // OPCODES and a category in CATEGORY
+    private static final Token.TokenLexeme[] OPCODES = {
+        Token.TokenLexeme.LOAD_LEX, Token.TokenLexeme.LOADI_LEX, Token.TokenLexeme.STORE_LEX,
+        Token.TokenLexeme.ADD_LEX, Token.TokenLexeme.SUB_LEX, Token.TokenLexeme.MULT_LEX,
+        Token.TokenLexeme.LSHIFT_LEX, Token.TokenLexeme.RSHIFT_LEX, Token.TokenLexeme.OUTPUT_LEX,
+        Token.TokenLexeme.NOP_LEX,
+    };
+    private static final Token.TokenCategory[] CATEGORY = new Token.TokenCategory[Token.TokenLexeme.values().length];
+    private static final int WIDTH = 128; // ILOC opcodes are ASCII
+    private static final int[] START = new int[WIDTH];
+    private static final int[] MOVE;
+    private static final Token.TokenLexeme[] ACCEPT;
+    private static final String[] STUCK;
+    private static final int REG_STATE;
+
+    static {
+        CATEGORY[Token.TokenLexeme.LOAD_LEX.ordinal()] = Token.TokenCategory.MEMOP;
+        CATEGORY[Token.TokenLexeme.STORE_LEX.ordinal()] = Token.TokenCategory.MEMOP;
+        CATEGORY[Token.TokenLexeme.LOADI_LEX.ordinal()] = Token.TokenCategory.LOADI;
+        CATEGORY[Token.TokenLexeme.ADD_LEX.ordinal()] = Token.TokenCategory.ARITHOP;
+        CATEGORY[Token.TokenLexeme.SUB_LEX.ordinal()] = Token.TokenCategory.ARITHOP;
+        CATEGORY[Token.TokenLexeme.MULT_LEX.ordinal()] = Token.TokenCategory.ARITHOP;
+        CATEGORY[Token.TokenLexeme.LSHIFT_LEX.ordinal()] = Token.TokenCategory.ARITHOP;
+        CATEGORY[Token.TokenLexeme.RSHIFT_LEX.ordinal()] = Token.TokenCategory.ARITHOP;
+        CATEGORY[Token.TokenLexeme.OUTPUT_LEX.ordinal()] = Token.TokenCategory.OUTPUT;
+        CATEGORY[Token.TokenLexeme.NOP_LEX.ordinal()] = Token.TokenCategory.NOP;
+
+        int most = 1; // every prefix a state of its own at worst
+        for (Token.TokenLexeme lx : OPCODES) most += lx.text().length();
+        MOVE = new int[most * WIDTH];
+        ACCEPT = new Token.TokenLexeme[most];
+        STUCK = new String[most];
+        int states = 1;
+        for (Token.TokenLexeme lx : OPCODES) {
+            final String text = lx.text();
+            int s = 0;
+            for (int i = 0; i < text.length(); i++) {
+                final int c = text.charAt(i);
+                int next = (s == 0) ? START[c] : MOVE[s * WIDTH + c];
+                if (next == 0) {
+                    next = states++;
+                    if (s == 0) START[c] = next;
+                    else MOVE[s * WIDTH + c] = next;
+                    STUCK[next] = "invalid token starting with '" + text.substring(0, i + 1) + "...'";
+                }
+                s = next;
+            }
+            ACCEPT[s] = lx;
+        }
+        REG_STATE = stateOf("r");
+        // Messages that don't follow the pattern, kept as they always were
+        STUCK[REG_STATE] = "'r' not followed by digits or 'shift'";
+        STUCK[stateOf("stor")] = "invalid token starting with 'stor...";
+    }
+
+    // The state reached by spelling prefix
+    private static int stateOf(String prefix) {
+        int s = START[prefix.charAt(0)];
+        for (int i = 1; i < prefix.length(); i++) s = MOVE[s * WIDTH + prefix.charAt(i)];
+        return s;
+    }
 
     public Scanner(String fileName) throws IOException {
-        this.reader = new BufferedReader(new FileReader(fileName));
+        this(fileName, System.err);
+    }
+
+    // Scan ILOC already in memory, from the buffer's position to its limit
+    public Scanner(ByteBuffer input, PrintStream err) throws IOException {
+        this(input, 1, err);
+    }
+
+    // Scan part of a file that starts on line firstLine
+    public Scanner(ByteBuffer input, int firstLine, PrintStream err) throws IOException {
+        this.err = err;
+        this.buf = input;
+        this.lineNumber = firstLine;
+        this.ch = read();
+        this.lexError = false;
+    }
+
+    public Scanner(String fileName, PrintStream err) throws IOException {
+        this.err = err;
+        FileChannel fc = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        long size = fc.size();
+        if (size <= MAP_LIMIT) { // Map the whole file, mapping stays valid after close
+            this.buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            fc.close();
+        } else { // Too big to map in one go, refill a direct buffer as we go
+            this.channel = fc;
+            this.buf = ByteBuffer.allocateDirect(CHUNK);
+            ((Buffer) this.buf).limit(0);
+        }
         this.lineNumber = 1;
-        this.ch = reader.read(); // Get first char rdy
+        this.ch = read(); // Get first char rdy
         this.lexError = false;
     }
 
+    // Next byte from the buffer, refilling from the channel when streaming
+    private int read() throws IOException {
+        if (buf.hasRemaining()) return buf.get() & 0xFF;
+        return refill();
+    }
+
+    private int refill() throws IOException {
+        if (channel == null) return -1;
+        ((Buffer) buf).clear(); // through Buffer so the class still links on Java 8
+        int n;
+        do {
+            n = channel.read(buf);
+        } while (n == 0);
+        ((Buffer) buf).flip();
+        if (n < 0) {
+            channel.close();
+            channel = null;
+            return -1;
+        }
+        return buf.get() & 0xFF;
+    }
+
     // After finishing line, increment read and lineNumber to be recorded on token
      private void advance() throws IOException {
         if (ch == '\n') {
             lineNumber++;
         }
-        ch = reader.read();
+        ch = read();
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Accumulate a decimal number as its digits are consumed.
+    // Returns -1 if it does not fit in an int, leaving ch on the offending digit
+    private int scanNumber() throws IOException {
+        int v = 0;
+        while (isDigit(ch)) {
+            int d = ch - '0';
+            if (v > (Integer.MAX_VALUE - d) / 10) return -1;
+            v = v * 10 + d;
+            advance();
+        }
+        return v;
     }
 
     private void skipSpace() throws IOException {
@@ -40,20 +186,20 @@ public class Scanner {
     }
     private Token errorAndContinue(String msg) throws IOException {
         // stderr the msg
-        System.err.println("ERROR " + lineNumber + ": " + msg);
+        err.println("ERROR " + lineNumber + ": " + msg);
         lexError = true;
         // Skip remainder of line
         while (ch != -1 && ch != '\n') {
-            ch = reader.read();
+            ch = read();
         }
         if (ch == '\n') {
             int ln = lineNumber; // report new line
             advance();
-            return tokenCheck(new Token(Token.TokenCategory.NEWLINE, null, 0, ln));
+            return tokenCheck(tok.set(Token.TokenCategory.NEWLINE, null, 0, ln));
         } else { // add a newline if there isnt one
             int ln = lineNumber;
             lineNumber++;
-            return tokenCheck(new Token(Token.TokenCategory.NEWLINE, null, 0, ln));
+            return tokenCheck(tok.set(Token.TokenCategory.NEWLINE, null, 0, ln));
         }
     }
 
@@ -62,12 +208,13 @@ public class Scanner {
         return t;
     }
 
+    // Advance to the next token. Always returns the same Token, refilled in place
     public Token nextToken() throws IOException {
         // NEWLINE token
         if (ch == '\n') {
             int ln = lineNumber;
             advance();
-            return tokenCheck(new Token(Token.TokenCategory.NEWLINE, null, 0, ln));
+            return tokenCheck(tok.set(Token.TokenCategory.NEWLINE, null, 0, ln));
         }
 
         // Skip whitespace, check for newline again
@@ -75,16 +222,16 @@ public class Scanner {
         if (ch == '\n') {
             int ln = lineNumber;
             advance();
-            return tokenCheck(new Token(Token.TokenCategory.NEWLINE, null, 0, ln));
+            return tokenCheck(tok.set(Token.TokenCategory.NEWLINE, null, 0, ln));
         }
         // EOF
         if (ch == -1) {
             if (!lastReturnedNewLine) {
                 int ln = lineNumber;
                 lineNumber++;
-                return tokenCheck(new Token(Token.TokenCategory.NEWLINE, null, 0, ln));
+                return tokenCheck(tok.set(Token.TokenCategory.NEWLINE, null, 0, ln));
             }
-            return tokenCheck(new Token(Token.TokenCategory.ENDFILE, null, 0, lineNumber));
+            return tokenCheck(tok.set(Token.TokenCategory.ENDFILE, null, 0, lineNumber));
         }
 
         // Comment //
@@ -92,17 +239,17 @@ public class Scanner {
             advance();
             if (ch == '/') {
                 while (ch != -1 && ch != '\n') {
-                    ch = reader.read();
+                    ch = read();
                 }
                 if (ch == '\n') { // new line exists, just go next
                     int ln = lineNumber;
                     advance();
-                    return tokenCheck(new Token(Token.TokenCategory.NEWLINE, null, 0, ln));
+                    return tokenCheck(tok.set(Token.TokenCategory.NEWLINE, null, 0, ln));
                 }
                 else { // newline doesn't exist, add and go next.
                     int ln = lineNumber;
                     lineNumber++;
-                    return tokenCheck(new Token(Token.TokenCategory.NEWLINE, null, 0, ln));
+                    return tokenCheck(tok.set(Token.TokenCategory.NEWLINE, null, 0, ln));
 
                 }
             } else {
@@ -114,7 +261,7 @@ public class Scanner {
         if (ch == ',') {
             int ln = lineNumber;
             advance();
-            return tokenCheck(new Token(Token.TokenCategory.COMMA, Token.TokenLexeme.COMMA_LEX, 0, ln));
+            return tokenCheck(tok.set(Token.TokenCategory.COMMA, Token.TokenLexeme.COMMA_LEX, 0, ln));
         }
 
         // Arrow =>
@@ -123,149 +270,56 @@ public class Scanner {
             advance();
             if (ch == '>') {
                 advance();
-                return tokenCheck(new Token(Token.TokenCategory.INTO, Token.TokenLexeme.INTO_LEX, 0, ln));
+                return tokenCheck(tok.set(Token.TokenCategory.INTO, Token.TokenLexeme.INTO_LEX, 0, ln));
             } else {
                 return errorAndContinue("'=' not followed by '>'");
             }
         }
 
-        // "r" branch: could be REG or rshift
-        if (ch == 'r') {
-            int ln = lineNumber;
-            advance();
-            if (Character.isDigit(ch)) {
-                // Register r<num>
-                StringBuilder sb = new StringBuilder();
-                while (Character.isDigit(ch)) {
-                    sb.append((char) ch);
-                    advance();
-                }
-                int regNum = Integer.parseInt(sb.toString());
-                return tokenCheck(new Token(Token.TokenCategory.REG, null, regNum, ln));
-            } else if (ch == 's') {
-                // rshift
-                advance();
-                if (ch == 'h') { advance();
-                    if (ch == 'i') { advance();
-                        if (ch == 'f') { advance();
-                            if (ch == 't') { advance();
-                                return tokenCheck(new Token(Token.TokenCategory.ARITHOP, Token.TokenLexeme.RSHIFT_LEX ,0, ln));
-                            } else {
-                                return errorAndContinue("invalid token starting with 'rshif...'");
-                            }
-                        } else {
-                            return errorAndContinue("invalid token starting with 'rshi...'");
-                        }
-                    } else {
-                        return errorAndContinue("invalid token starting with 'rsh...'");
-                    }
-                } else {
-                    return errorAndContinue("invalid token starting with 'rs...'");
-                }
-            } else {
-                return errorAndContinue("'r' not followed by digits or 'shift'");
-            }
-        }
-
         // Constants
-        if (Character.isDigit(ch)) {
+        if (isDigit(ch)) {
             int ln = lineNumber;
-            StringBuilder sb = new StringBuilder();
-            while (Character.isDigit(ch)) {
-                sb.append((char) ch);
-                advance();
-            }
-            int constVal = Integer.parseInt(sb.toString());
-            return tokenCheck(new Token(Token.TokenCategory.CONST, null, constVal, ln));
-        }
-
-        // Opcodes
-        int ln = lineNumber;
-        if (ch == 'l') { // load, loadI, lshift
-            advance();
-            if (ch == 'o') { // load / loadI
-                advance();
-                if (ch == 'a') { advance();
-                    if (ch == 'd') { advance();
-                        if (ch == 'I') { advance();
-                            return tokenCheck(new Token(Token.TokenCategory.LOADI, Token.TokenLexeme.LOADI_LEX, 0, ln));
-                        }
-                        return tokenCheck(new Token(Token.TokenCategory.MEMOP, Token.TokenLexeme.LOAD_LEX, 0, ln));
-                    } else { return errorAndContinue("invalid token starting with 'loa...'");}
-                } else { return errorAndContinue("invalid token starting with 'lo...'");}
-            } else if (ch == 's') { // lshift
-                advance(); if (ch == 'h') { advance();
-                    if (ch == 'i') { advance();
-                        if (ch == 'f') { advance();
-                            if (ch == 't') { advance();
-                                return tokenCheck(new Token(Token.TokenCategory.ARITHOP, Token.TokenLexeme.LSHIFT_LEX, 0, ln));
-                            } else { return errorAndContinue("invalid token starting with 'lshif...'");}
-                        } else { return errorAndContinue("invalid token starting with 'lshi...'");}
-                    } else {return errorAndContinue("invalid token starting with 'lsh...'");}
-                } else { return errorAndContinue("invalid token starting with 'ls...'");}
-            } else { return errorAndContinue("invalid token starting with 'l...'");}
-        } 
-
-        if (ch == 's') { // store, sub
-            advance();
-            if (ch == 't') { advance();
-                if (ch == 'o') { advance();
-                    if (ch == 'r') { advance();
-                        if (ch == 'e') { advance();
-                            return tokenCheck(new Token(Token.TokenCategory.MEMOP, Token.TokenLexeme.STORE_LEX, 0, ln));
-                        } else {return errorAndContinue("invalid token starting with 'stor...");}
-                    } else { return errorAndContinue("invalid token starting with 'sto...'");}
-                } else { return errorAndContinue("invalid token starting with 'st...'");}
-            } else if (ch == 'u') { advance();
-                if (ch == 'b') { advance();
-                    return tokenCheck(new Token(Token.TokenCategory.ARITHOP, Token.TokenLexeme.SUB_LEX, 0, ln));
-                } else { return errorAndContinue("invalid token starting with 'su...'");}
-            } else { return errorAndContinue("invalid token starting with 's...'");}
-        }
-
-        if (ch == 'a') { // add
-            advance(); 
-            if (ch == 'd') { advance();
-                if (ch == 'd') { advance();
-                    return tokenCheck(new Token(Token.TokenCategory.ARITHOP, Token.TokenLexeme.ADD_LEX, 0, ln));
-                } else { return errorAndContinue("invalid token starting with 'ad...'");}
-            } else { return errorAndContinue("invalid token starting with 'a...'");}
+            int constVal = scanNumber();
+            if (constVal < 0) return errorAndContinue("constant too large");
+            return tokenCheck(tok.set(Token.TokenCategory.CONST, null, constVal, ln));
         }
 
-        if (ch == 'm') { // mult
-            advance(); if (ch == 'u') { advance();
-                if (ch == 'l') { advance();
-                    if (ch == 't') { advance();
-                        return tokenCheck(new Token(Token.TokenCategory.ARITHOP, Token.TokenLexeme.MULT_LEX, 0, ln));
-                    } else { return errorAndContinue("invalid token starting with 'mul...'"); }
-                } else { return errorAndContinue("invalid token starting with 'mu...'"); }
-            } else { return errorAndContinue("invalid token starting with 'm...'"); }
+        // Opcodes, and registers, which share the 'r' of rshift
+        if (ch >= 0 && ch < WIDTH && START[ch] != 0) {
+            final int ln = lineNumber;
+            int state = START[ch];
+            ch = read(); // a letter, so no line to count
+            if (state == REG_STATE && isDigit(ch)) {
+                int regNum = scanNumber();
+                if (regNum < 0) return errorAndContinue("register number too large");
+                return tokenCheck(tok.set(Token.TokenCategory.REG, null, regNum, ln));
+            }
+            // Longest match: follow the table while it has a move, then
+            // stop on an opcode or fail where the lexeme went wrong
+            for (int next; ch >= 0 && ch < WIDTH && (next = MOVE[state * WIDTH + ch]) != 0; state = next) {
+                ch = read();
+            }
+            final Token.TokenLexeme lx = ACCEPT[state];
+            if (lx == null) return errorAndContinue(STUCK[state]);
+            return tokenCheck(tok.set(CATEGORY[lx.ordinal()], lx, 0, ln));
         }
 
-        if (ch == 'o') { // output
-            advance(); if (ch == 'u') { advance();
-                if (ch == 't') { advance();
-                    if (ch == 'p') { advance();
-                        if (ch == 'u') { advance();
-                            if (ch == 't') { advance();
-                                return tokenCheck(new Token(Token.TokenCategory.OUTPUT, Token.TokenLexeme.OUTPUT_LEX, 0, ln));
-                            } else { return errorAndContinue("invalid token starting with 'outpu...'"); }
-                        } else { return errorAndContinue("invalid token starting with 'outp...'"); }
-                    } else { return errorAndContinue("invalid token starting with 'out...'"); }
-                } else { return errorAndContinue("invalid token starting with 'ou...'"); }
-            } else { return errorAndContinue("invalid token starting with 'o...'"); }
-        }
+        // Unknown char
+        return errorAndContinue("invalid char '" + badChar() + "'");
+    }
 
-        if (ch == 'n') { // nop
-            advance(); if (ch == 'o') { advance();
-                if (ch == 'p') { advance();
-                    return tokenCheck(new Token(Token.TokenCategory.NOP, Token.TokenLexeme.NOP_LEX, 0, ln));
-                } else { return errorAndContinue("invalid token starting with 'no...'"); }
-            } else { return errorAndContinue("invalid token starting with 'n...'"); }
+    // Decode the offending character for the error message, gathering any
+    // UTF-8 continuation bytes so non-ASCII input reads the same as before
+    private String badChar() throws IOException {
+        if (ch < 0x80) return String.valueOf((char) ch);
+        byte[] seq = new byte[4];
+        int n = 0;
+        seq[n++] = (byte) ch;
+        ch = read();
+        while (n < seq.length && (ch & 0xC0) == 0x80) {
+            seq[n++] = (byte) ch;
+            ch = read();
         }
-
-        // Unknown char
-        char bad = (char) ch;
-        return errorAndContinue("invalid char '" + bad + "'");
+        return new String(seq, 0, n, StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,362 @@
+package src;
+
+import java.util.Arrays;
+
+// List scheduler for a straight-line block. It builds the dependence graph
+// over the register names in sr and over memory, then issues one op per cycle.
+// Each cycle it takes the ready op with the longest latency-weighted path to
+// the end of the block, with ties going to source order. The block is
+// rewritten in the new order and its nops are dropped.
+//
+// Memory: a store is ordered after every earlier load, store or output that
+// may touch the same word, and a load or output after every such store.
+// Addresses are compared when they are constants, from loadI or arithmetic
+// on loadI results. An unknown address may alias anything. outputs also
+// keep their relative order.
+//
+// The graph has O(n) edges: an op gets one edge per operand plus amortized
+// O(1) memory edges, at the price of a few orderings the block does not need.
+// With the heaps that is O(n log n) in all.
+public final class Scheduler {
+    private final IRList ir;
+    private final int[] latency;
+    private final int names; // one past the highest register name
+
+    // Successors of op i are succ[succStart[i] .. succStart[i + 1]). The
+    // graph is built twice over, once to count the edges and once to store
+    // them. A successor is stored as ~op when it only has to come later, and
+    // as op when it must also wait out the latency of i
+    private int[] succStart;
+    private int[] succ;
+    private int[] preds;
+    private boolean counting;
+
+    private Scheduler(IRList ir, int[] latency) {
+        this.ir = ir;
+        this.latency = latency;
+        int max = 0;
+        for (int i = 0; i < ir.count; i++) {
+            for (int slot : Op.uses(ir.opc[i])) max = Math.max(max, ir.sr[3 * i + slot] + 1);
+            if (Op.isDef(ir.opc[i])) max = Math.max(max, ir.sr[3 * i + 2] + 1);
+        }
+        this.names = max;
+    }
+
+    public static void schedule(IRList ir, int[] latency) {
+        if (ir.count == 0) return;
+        Scheduler s = new Scheduler(ir, latency);
+        s.buildGraph();
+        s.reorder(s.listSchedule());
+    }
+
+    private void buildGraph() {
+        final int n = ir.count;
+        succStart = new int[n + 1];
+        counting = true;
+        registerEdges();
+        memoryEdges();
+        for (int i = 0; i < n; i++) succStart[i + 1] += succStart[i];
+        succ = new int[succStart[n]];
+        preds = new int[n];
+        counting = false;
+        registerEdges();
+        memoryEdges();
+        // The fill pass left succStart[i] at the end of i's list
+        System.arraycopy(succStart, 0, succStart, 1, n);
+        succStart[0] = 0;
+    }
+
+    // data: `to` reads what `from` produced, so it waits for from's latency
+    private void edge(int from, int to, boolean data) {
+        if (counting) {
+            succStart[from + 1]++;
+        } else {
+            succ[succStart[from]++] = data ? to : ~to;
+            preds[to]++;
+        }
+    }
+
+    // Def -> use with the def's latency; use -> next def and def -> next def
+    // of the same name, so the names keep their values. Uses are only kept
+    // for names defined again later, which VR names never are
+    private void registerEdges() {
+        final int n = ir.count;
+        final byte[] opc = ir.opc;
+        final int[] sr = ir.sr;
+        final int[] lastDef = new int[names];
+        final int[] defsLeft = new int[names];
+        final int[][] uses = new int[names][];  // uses since the last def
+        final int[] useCount = new int[names];
+        Arrays.fill(lastDef, -1);
+        for (int i = 0; i < n; i++) if (Op.isDef(opc[i])) defsLeft[sr[3 * i + 2]]++;
+
+        for (int i = 0; i < n; i++) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            for (int slot : Op.uses(o)) {
+                final int r = sr[b + slot];
+                if (lastDef[r] >= 0) edge(lastDef[r], i, true);
+                if (defsLeft[r] > 0) {
+                    if (uses[r] == null) uses[r] = new int[4];
+                    else if (useCount[r] == uses[r].length) uses[r] = Arrays.copyOf(uses[r], 2 * useCount[r]);
+                    uses[r][useCount[r]++] = i;
+                }
+            }
+            if (Op.isDef(o)) {
+                final int r = sr[b + 2];
+                for (int u = 0; u < useCount[r]; u++) {
+                    if (uses[r][u] != i) edge(uses[r][u], i, false);
+                }
+                if (lastDef[r] >= 0) edge(lastDef[r], i, false);
+                useCount[r] = 0;
+                lastDef[r] = i;
+                defsLeft[r]--;
+            }
+        }
+    }
+
+    // Memory ops seen since the last store to an unknown address (the
+    // "epoch"), per known address and for unknown addresses
+    private void memoryEdges() {
+        final int n = ir.count;
+        final byte[] opc = ir.opc;
+        final int[] sr = ir.sr;
+
+        // Constant value of each name at the current op, if known
+        final boolean[] known = new boolean[names];
+        final int[] value = new int[names];
+
+        // Per known address: its last store and the readers since, linked
+        // through readerNext; stale once epoch has moved on
+        final IntMap addrs = new IntMap();
+        int[] lastStore = new int[64];
+        int[] readerHead = new int[64];
+        int[] addrEpoch = new int[64];
+        final int[] readerNext = new int[n];
+        int epoch = 0;
+        int lastUnknownStore = -1;
+        int lastOutput = -1;
+        final OpList sinceUnknownStore = new OpList();
+        final OpList unknownReaders = new OpList();  // collapsed into the store that follows them
+        final OpList knownStores = new OpList();     // collapsed into the reader that follows them
+
+        for (int i = 0; i < n; i++) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            if (o == Op.LOAD || o == Op.STORE || o == Op.OUTPUT) {
+                final int ar = (o == Op.STORE) ? sr[b + 2] : sr[b];
+                final boolean constAddr = (o == Op.OUTPUT) || known[ar];
+                final int addr = (o == Op.OUTPUT) ? sr[b] : value[ar];
+                int a = -1;
+                if (constAddr) {
+                    a = addrs.get(addr, -1);
+                    if (a < 0) {
+                        a = addrs.size();
+                        addrs.put(addr, a);
+                        if (a == lastStore.length) {
+                            lastStore = Arrays.copyOf(lastStore, 2 * a);
+                            readerHead = Arrays.copyOf(readerHead, 2 * a);
+                            addrEpoch = Arrays.copyOf(addrEpoch, 2 * a);
+                        }
+                        addrEpoch[a] = -1;
+                    }
+                    if (addrEpoch[a] != epoch) {
+                        addrEpoch[a] = epoch;
+                        lastStore[a] = -1;
+                        readerHead[a] = -1;
+                    }
+                }
+
+                if (o == Op.STORE && !constAddr) {
+                    if (lastUnknownStore >= 0) edge(lastUnknownStore, i, false);
+                    for (int j = 0; j < sinceUnknownStore.size; j++) edge(sinceUnknownStore.op[j], i, false);
+                    epoch++;
+                    lastUnknownStore = i;
+                    sinceUnknownStore.size = 0;
+                    unknownReaders.size = 0;
+                    knownStores.size = 0;
+                    continue;
+                }
+                if (lastUnknownStore >= 0) edge(lastUnknownStore, i, o != Op.STORE);
+                if (o == Op.STORE) {
+                    if (lastStore[a] >= 0) edge(lastStore[a], i, false);
+                    for (int r = readerHead[a]; r >= 0; r = readerNext[r]) edge(r, i, false);
+                    for (int j = 0; j < unknownReaders.size; j++) edge(unknownReaders.op[j], i, false);
+                    if (unknownReaders.size > 0) {
+                        unknownReaders.size = 0;
+                        unknownReaders.add(i);
+                    }
+                    lastStore[a] = i;
+                    readerHead[a] = -1;
+                    knownStores.add(i);
+                } else if (constAddr) {
+                    if (lastStore[a] >= 0) edge(lastStore[a], i, true);
+                    readerNext[i] = readerHead[a];
+                    readerHead[a] = i;
+                } else {
+                    for (int j = 0; j < knownStores.size; j++) {
+                        final int s = knownStores.op[j];
+                        edge(s, i, opc[s] == Op.STORE);
+                    }
+                    if (knownStores.size > 0) {
+                        knownStores.size = 0;
+                        knownStores.add(i);
+                    }
+                    unknownReaders.add(i);
+                }
+                if (o == Op.OUTPUT) {
+                    if (lastOutput >= 0) edge(lastOutput, i, false);
+                    lastOutput = i;
+                }
+                sinceUnknownStore.add(i);
+            }
+
+            if (Op.isDef(o)) {
+                final int d = sr[b + 2];
+                if (o == Op.LOADI) {
+                    known[d] = true;
+                    value[d] = sr[b];
+                } else if (Op.isArith(o) && known[sr[b]] && known[sr[b + 1]]) {
+                    known[d] = true;
+                    value[d] = Op.eval(o, value[sr[b]], value[sr[b + 1]]);
+                } else {
+                    known[d] = false;
+                }
+            }
+        }
+    }
+
+    // The new order of the ops, nops left out
+    private int[] listSchedule() {
+        final int n = ir.count;
+        final byte[] opc = ir.opc;
+
+        final int[] succStart = this.succStart;
+        final int[] succ = this.succ;
+        final int[] preds = this.preds;
+
+        // Priority: the longest weighted path from the op to the end. Every
+        // edge points forward, so one backward pass sees successors first
+        final int[] prio = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            final int lat = latency[opc[i]];
+            int p = lat;
+            for (int e = succStart[i]; e < succStart[i + 1]; e++) {
+                final int s = succ[e];
+                p = Math.max(p, s >= 0 ? lat + prio[s] : prio[~s]);
+            }
+            prio[i] = p;
+        }
+
+        final int[] earliest = new int[n];
+        final OpHeap ready = new OpHeap(prio, true);
+        final OpHeap waiting = new OpHeap(earliest, false);
+        for (int i = 0; i < n; i++) if (preds[i] == 0) waiting.push(i);
+
+        final int[] order = new int[n];
+        int placed = 0;
+        int cycle = 0;
+        for (int done = 0; done < n; ) {
+            while (waiting.size > 0 && earliest[waiting.top()] <= cycle) ready.push(waiting.pop());
+            if (ready.size == 0) { // stall until something is ready
+                cycle = earliest[waiting.top()];
+                continue;
+            }
+            final int i = ready.pop();
+            done++;
+            if (opc[i] != Op.NOP) order[placed++] = i;
+            for (int e = succStart[i]; e < succStart[i + 1]; e++) {
+                int s = succ[e];
+                int at = cycle + latency[opc[i]];
+                if (s < 0) {
+                    s = ~s;
+                    at = cycle;
+                }
+                earliest[s] = Math.max(earliest[s], at);
+                if (--preds[s] == 0) waiting.push(s);
+            }
+            if (opc[i] != Op.NOP) cycle++;
+        }
+        return Arrays.copyOf(order, placed);
+    }
+
+    private void reorder(int[] order) {
+        final int m = order.length;
+        final byte[] opc = new byte[Math.max(1, m)];
+        final int[] line = new int[Math.max(1, m)];
+        final int[] sr = new int[3 * Math.max(1, m)];
+        for (int j = 0; j < m; j++) {
+            final int i = order[j];
+            opc[j] = ir.opc[i];
+            line[j] = ir.line[i];
+            System.arraycopy(ir.sr, 3 * i, sr, 3 * j, 3);
+        }
+        ir.opc = opc;
+        ir.line = line;
+        ir.sr = sr;
+        ir.count = m;
+        ir.vr = ir.nu = ir.pr = null; // stale now, rename again
+        ir.spill = null;
+    }
+
+    // Growable list of op indices
+    private static final class OpList {
+        int[] op = new int[16];
+        int size;
+
+        void add(int i) {
+            if (size == op.length) op = Arrays.copyOf(op, 2 * size);
+            op[size++] = i;
+        }
+    }
+
+    // Binary heap of op indices: highest key first, or lowest, ties to the lower index
+    private static final class OpHeap {
+        int[] heap = new int[256];
+        final int[] key;
+        final boolean max;
+        int size;
+
+        OpHeap(int[] key, boolean max) {
+            this.key = key;
+            this.max = max;
+        }
+
+        private boolean before(int a, int b) {
+            if (key[a] != key[b]) return max ? key[a] > key[b] : key[a] < key[b];
+            return a < b;
+        }
+
+        int top() {
+            return heap[0];
+        }
+
+        void push(int op) {
+            if (size == heap.length) heap = Arrays.copyOf(heap, 2 * size);
+            int h = size++;
+            while (h > 0) {
+                final int parent = (h - 1) >>> 1;
+                if (!before(op, heap[parent])) break;
+                heap[h] = heap[parent];
+                h = parent;
+            }
+            heap[h] = op;
+        }
+
+        int pop() {
+            final int top = heap[0];
+            final int last = heap[--size];
+            int h = 0;
+            while (true) {
+                int c = 2 * h + 1;
+                if (c >= size) break;
+                if (c + 1 < size && before(heap[c + 1], heap[c])) c++;
+                if (!before(heap[c], last)) break;
+                heap[h] = heap[c];
+                h = c;
+            }
+            heap[h] = last;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package src;
+
+import java.util.Arrays;
+
+// Executes a straight-line block and counts cycles. One op issues per cycle,
+// in order; an op waits until the registers it reads are ready and, for a
+// load or output, until the last store to its address has finished. Its
+// result is ready latency[opc] cycles after it issues.
+//
+// Registers and memory words start at 0. Memory is byte addressed in
+// 4-byte words, as in the course simulator, and every load, store and output
+// must use a multiple of 4: an unaligned address stops the run with a fault,
+// since the words it would straddle can't be told apart here. Words are
+// kept in pages allocated on first touch so any 32-bit address works.
+public final class Simulator {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE = 1 << PAGE_BITS;
+    private static final int WORD_BITS = 2; // Allocator.WORD is 1 << WORD_BITS
+
+    // Cycles from issue until the result can be used, indexed by opcode
+    public final int[] latency = defaultLatency();
+
+    public long ops;
+    public long loads;
+    public long stores;
+    public long outputs;
+    public long cycles;     // until the last result is ready
+
+    private int[] reg = new int[64];
+    private long[] regReady = new long[64];
+    private final int[][] mem = new int[1 << (32 - WORD_BITS - PAGE_BITS)][];
+    private final long[][] memReady = new long[1 << (32 - WORD_BITS - PAGE_BITS)][];
+    private boolean faulted;    // stopped at an unaligned address
+    private int faultAddr, faultLine;
+    private long clock;
+    private int[] out = new int[64];
+    private int outCount;
+
+    // load, store and mult take 3 cycles, everything else 1
+    public static int[] defaultLatency() {
+        return new int[] {3, 1, 3, 1, 1, 3, 1, 1, 1, 1};
+    }
+
+    // Apply "load=3,mult=2" to latency, false if malformed
+    public static boolean parseLatency(String spec, int[] latency) {
+        for (String item : spec.split(",")) {
+            int eq = item.indexOf('=');
+            if (eq < 0) return false;
+            String name = item.substring(0, eq);
+            int opc = -1;
+            for (int o = 0; o <= Op.NOP; o++) {
+                if (Op.name(o).equals(name)) opc = o;
+            }
+            if (opc < 0) return false;
+            try {
+                latency[opc] = Integer.parseInt(item.substring(eq + 1));
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+            if (latency[opc] < 1) return false;
+        }
+        return true;
+    }
+
+    // Run the block as parsed. Registers are the source names, numbered
+    // densely so the register file is as big as the set of names
+    public void run(IRList ir) {
+        final int[] names = new int[3 * ir.count];
+        registers(Renamer.denseNames(ir, names));
+        final byte[] opc = ir.opc;
+        final int[] sr = ir.sr;
+        for (int i = 0; i < ir.count; i++) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            // loadI and output keep their constant
+            final int s0 = (o == Op.LOADI || o == Op.OUTPUT) ? sr[b] : names[b];
+            exec(o, s0, names[b + 1], names[b + 2]);
+            if (faulted) {
+                faultLine = ir.line[i];
+                return;
+            }
+        }
+    }
+
+    // Run the allocated block with its spill code, as printAllocated prints it
+    public void runAllocated(IRList ir, int k) {
+        registers(k);
+        final SpillCode spill = ir.spill;
+        final int[] prs = ir.pr;
+        int j = 0;
+        for (int i = 0; i < ir.count; i++) {
+            for (; j < spill.count && spill.at[j] == i; j++) {
+                exec(spill.opc[j], spill.s0[j], 0, spill.s2[j]);
+            }
+            final int b = 3 * i;
+            final int o = ir.opc[i];
+            final int s0 = (o == Op.LOADI || o == Op.OUTPUT) ? ir.sr[b] : prs[b];
+            exec(o, s0, prs[b + 1], prs[b + 2]);
+            if (faulted) { // by the op or the spill code before it
+                faultLine = ir.line[i];
+                return;
+            }
+        }
+    }
+
+    // Why the run stopped early, or null if it ran to the end
+    public String fault() {
+        if (!faulted) return null;
+        return "unaligned address " + Integer.toUnsignedString(faultAddr) + " at line " + faultLine;
+    }
+
+    private void exec(int o, int s0, int s1, int s2) {
+        if (o == Op.NOP) return;
+        ops++;
+        long issue = clock;
+        switch (o) {
+            case Op.LOADI:
+                set(s2, s0, issue + latency[o]);
+                break;
+            case Op.LOAD: {
+                issue = Math.max(issue, regReady[s0]);
+                final int addr = reg[s0];
+                if (unaligned(addr)) return;
+                issue = Math.max(issue, storeDone(addr));
+                set(s2, read(addr), issue + latency[o]);
+                loads++;
+                break;
+            }
+            case Op.STORE: {
+                issue = Math.max(issue, Math.max(regReady[s0], regReady[s2]));
+                if (unaligned(reg[s2])) return;
+                final long done = issue + latency[o];
+                write(reg[s2], reg[s0], done);
+                if (done > cycles) cycles = done;
+                stores++;
+                break;
+            }
+            case Op.OUTPUT: {
+                if (unaligned(s0)) return;
+                issue = Math.max(issue, storeDone(s0));
+                if (outCount == out.length) out = Arrays.copyOf(out, 2 * outCount);
+                out[outCount++] = read(s0);
+                if (issue + latency[o] > cycles) cycles = issue + latency[o];
+                outputs++;
+                break;
+            }
+            default: // arithmetic
+                issue = Math.max(issue, Math.max(regReady[s0], regReady[s1]));
+                set(s2, Op.eval(o, reg[s0], reg[s1]), issue + latency[o]);
+                break;
+        }
+        clock = issue + 1;
+    }
+
+    private void set(int r, int v, long ready) {
+        reg[r] = v;
+        regReady[r] = ready;
+        if (ready > cycles) cycles = ready;
+    }
+
+    // Record the first address that isn't a multiple of the word size
+    private boolean unaligned(int addr) {
+        if ((addr & ((1 << WORD_BITS) - 1)) == 0) return false;
+        faulted = true;
+        faultAddr = addr;
+        return true;
+    }
+
+    // Memory is indexed by word, addr >>> WORD_BITS, once alignment is checked
+    private int read(int addr) {
+        final int w = addr >>> WORD_BITS;
+        final int[] page = mem[w >>> PAGE_BITS];
+        return page == null ? 0 : page[w & (PAGE - 1)];
+    }
+
+    private long storeDone(int addr) {
+        final int w = addr >>> WORD_BITS;
+        final long[] page = memReady[w >>> PAGE_BITS];
+        return page == null ? 0 : page[w & (PAGE - 1)];
+    }
+
+    private void write(int addr, int v, long done) {
+        final int w = addr >>> WORD_BITS;
+        final int p = w >>> PAGE_BITS;
+        if (mem[p] == null) {
+            mem[p] = new int[PAGE];
+            memReady[p] = new long[PAGE];
+        }
+        mem[p][w & (PAGE - 1)] = v;
+        memReady[p][w & (PAGE - 1)] = done;
+    }
+
+    private void registers(int n) {
+        if (n > reg.length) {
+            reg = Arrays.copyOf(reg, n);
+            regReady = Arrays.copyOf(regReady, n);
+        }
+    }
+
+    public int outputCount() {
+        return outCount;
+    }
+
+    public int output(int i) {
+        return out[i];
+    }
+}
@@ -0,0 +1,48 @@
+package src;
+
+import java.util.Arrays;
+
+// Spill and restore code inserted by Allocator, kept beside the IRList
+// instead of shifting its columns. Entry j is emitted just before op at[j];
+// entries are added in program order, so at[] never decreases.
+public final class SpillCode {
+    public int[] at;
+    public byte[] opc;  // LOADI, LOAD or STORE
+    public int[] s0;    // loadI constant, load address PR, store value PR
+    public int[] s2;    // loadI/load destination PR, store address PR
+    public int count;
+
+    public SpillCode() {
+        at = new int[64];
+        opc = new byte[64];
+        s0 = new int[64];
+        s2 = new int[64];
+    }
+
+    public void add(int before, int op, int slot0, int slot2) {
+        if (count == at.length) grow(count + 1);
+        at[count] = before;
+        opc[count] = (byte) op;
+        s0[count] = slot0;
+        s2[count] = slot2;
+        count++;
+    }
+
+    // Append all of `other`, which must only refer to later ops
+    public void addAll(SpillCode other) {
+        if (count + other.count > at.length) grow(count + other.count);
+        System.arraycopy(other.at, 0, at, count, other.count);
+        System.arraycopy(other.opc, 0, opc, count, other.count);
+        System.arraycopy(other.s0, 0, s0, count, other.count);
+        System.arraycopy(other.s2, 0, s2, count, other.count);
+        count += other.count;
+    }
+
+    private void grow(int min) {
+        int cap = Math.max(min, at.length * 2);
+        at = Arrays.copyOf(at, cap);
+        opc = Arrays.copyOf(opc, cap);
+        s0 = Arrays.copyOf(s0, cap);
+        s2 = Arrays.copyOf(s2, cap);
+    }
+}
@@ -0,0 +1,343 @@
+package src;
+
+import java.util.ArrayList;
+
+// Branch and bound over the victim choices of one region, for -exact.
+// It replays the region the way Allocator does: same operand order, same
+// marking, same points where every usable PR is taken. Each of those points
+// is a node, and the result is the victim VRs, in order, for Allocator to
+// evict instead of asking chooseVictim.
+//
+// Cost is inserted ops: evicting a dirty value costs a store and its address
+// loadI, and getting it back costs a loadI (rematerializable) or a load and
+// its address loadI. Both are charged at the eviction, since an evicted value
+// is always needed again. Address loadIs saved by reuse are not modelled.
+//
+// At each node only the farthest next use of each cost class is tried; a
+// nearer value of the same class can always swap places with it. A branch
+// is cut once its cost plus the values that must still be evicted later
+// reaches the best plan found, the heuristic's own plan being the first.
+// Where the values go from a node depends only on the point in the region
+// and which values are in PRs in which class, so a node is also cut when
+// an earlier one reached the same state at no more cost.
+final class SpillSearch {
+    private static final int INF = Integer.MAX_VALUE;
+    private static final byte REMAT = 0, CLEAN = 1, DIRTY = 2;
+    private static final int[] COST = {1, 2, 4}; // by class, eviction and restore together
+
+    private final byte[] opc;
+    private final int[] vr;
+    private final int[] nu;
+    private final int from, to;
+    private final int usableK;
+    private final IntMap remat = new IntMap(); // VRs the region defines with loadI
+    private final int[] loadedAt;              // Allocator's: >= 0 when a load's value stays in memory
+    // Most values live into any op from i on, index i - from
+    private final int[] liveAhead;
+    private final int liveIn;
+
+    long nodes;        // nodes expanded by the last plan()
+    boolean complete;  // whether it searched everything within the budget
+
+    SpillSearch(IRList ir, int from, int to, int usableK, int[] loadedAt) {
+        this.opc = ir.opc;
+        this.vr = ir.vr;
+        this.nu = ir.nu;
+        this.from = from;
+        this.to = to;
+        this.usableK = usableK;
+        this.loadedAt = loadedAt;
+        for (int i = from; i < to; i++) {
+            if (opc[i] == Op.LOADI) remat.put(vr[3 * i + 2], 1);
+        }
+
+        // Bottom up, as Renamer counts: live before op i is live after it,
+        // less its def, plus the values it uses for the last time
+        liveAhead = new int[to - from + 1];
+        int live = 0, most = 0;
+        for (int i = to - 1; i >= from; i--) {
+            final int o = opc[i];
+            final int b = 3 * i;
+            if (Op.isDef(o) && vr[b + 2] >= 0 && nu[b + 2] != INF) live--;
+            int last = -1;
+            for (int slot : Op.uses(o)) {
+                final int v = vr[b + slot];
+                if (v >= 0 && v != last && nu[b + slot] == INF) live++;
+                last = v;
+            }
+            if (live > most) most = live;
+            liveAhead[i - from] = most;
+        }
+        liveIn = live; // used before any def here, as if evicted up front
+    }
+
+    // The victims to evict, in order, for a plan cheaper than the heuristic,
+    // or null to keep the heuristic
+    int[] plan(long budget) {
+        nodes = 0;
+        complete = false;
+        State s = new State(usableK);
+        s.op = from;
+        s.evicted = liveIn;
+
+        // The heuristic's plan is the bound to beat
+        State h = s.copy();
+        while (advance(h)) evict(h, h.vr[heuristicVictim(h)]);
+        int best = h.cost;
+        int[] bestPlan = null;
+        if (best == 0 || !advance(s)) {
+            complete = true;
+            return null;
+        }
+
+        final Seen seen = new Seen();
+        final ArrayList<Frame> stack = new ArrayList<>();
+        int depth = 0;
+        push(stack, depth++, s);
+        while (depth > 0) {
+            final Frame f = stack.get(depth - 1);
+            if (f.next == f.count) {
+                depth--;
+                continue;
+            }
+            final int v = f.cand[f.next++];
+            if (++nodes > budget) {
+                return bestPlan; // out of budget, keep whatever beat the heuristic
+            }
+            final State c = (depth < stack.size() && stack.get(depth).state != null)
+                    ? stack.get(depth).state.set(f.state) : f.state.copy();
+            evict(c, v);
+            if (c.cost + bound(c) >= best) continue;
+            if (!advance(c)) { // a full plan, and cheaper
+                best = c.cost;
+                bestPlan = new int[depth];
+                for (int d = 0; d < depth; d++) bestPlan[d] = stack.get(d).chosen();
+                continue;
+            }
+            if (c.cost + bound(c) >= best || !seen.better(c.key(), c.cost)) continue;
+            push(stack, depth++, c);
+        }
+        complete = true;
+        return bestPlan;
+    }
+
+    // Values that must still be evicted from here on, each costing at least
+    // one op: at any later op, those live beyond usableK that are not
+    // already out of a PR
+    private int bound(State s) {
+        final int ahead = (s.op + 1 < to) ? liveAhead[s.op + 1 - from] : 0;
+        return Math.max(0, ahead - usableK - s.evicted);
+    }
+
+    private void push(ArrayList<Frame> stack, int depth, State s) {
+        if (depth == stack.size()) stack.add(new Frame());
+        final Frame f = stack.get(depth);
+        f.state = s;
+        f.count = 0;
+        f.next = 0;
+        // The heuristic's pick first, then the farthest of each other class
+        final int first = heuristicVictim(s);
+        f.cand[f.count++] = s.vr[first];
+        for (byte cls = REMAT; cls <= DIRTY; cls++) {
+            if (cls == s.cls[first]) continue;
+            int pick = -1;
+            for (int r = 0; r < s.count; r++) {
+                if (s.cls[r] != cls || s.marked(s.vr[r])) continue;
+                if (pick < 0 || s.nu[r] > s.nu[pick]) pick = r;
+            }
+            if (pick >= 0) f.cand[f.count++] = s.vr[pick];
+        }
+    }
+
+    // chooseVictim's rule: the farthest unmarked next use, but within 1 of
+    // it prefer rematerializable, then clean, then the farther one
+    private static int heuristicVictim(State s) {
+        int maxNU = -1;
+        for (int r = 0; r < s.count; r++) {
+            if (!s.marked(s.vr[r]) && s.nu[r] > maxNU) maxNU = s.nu[r];
+        }
+        int best = -1;
+        for (int r = 0; r < s.count; r++) {
+            if (s.marked(s.vr[r]) || s.nu[r] < (long) maxNU - 1) continue;
+            if (best < 0 || s.cls[r] < s.cls[best] || (s.cls[r] == s.cls[best] && s.nu[r] > s.nu[best])) best = r;
+        }
+        return best;
+    }
+
+    private static void evict(State s, int v) {
+        final int r = s.find(v);
+        s.cost += COST[s.cls[r]];
+        s.evicted++;
+        s.remove(r);
+    }
+
+    // Run the region on from s until every usable PR is taken and one more
+    // is needed, which returns true, or to the end of the region
+    private boolean advance(State s) {
+        for (; s.op < to; s.op++, s.step = 0) {
+            final int i = s.op;
+            final int o = opc[i];
+            final int b = 3 * i;
+            final int[] uses = Op.uses(o);
+            for (; s.step < uses.length; s.step++) {
+                final int v = vr[b + uses[s.step]];
+                if (v < 0) continue;
+                final int r = s.find(v);
+                if (r >= 0) {
+                    s.nu[r] = nu[b + uses[s.step]];
+                } else {
+                    if (s.count == usableK) return true;
+                    s.add(v, nu[b + uses[s.step]], remat.get(v, 0) != 0 ? REMAT : CLEAN);
+                    if (s.evicted > 0) s.evicted--;
+                }
+                s.mark[s.step] = v;
+            }
+            if (s.step == uses.length) { // last uses free their PR, then the def may take any
+                for (int slot : uses) {
+                    final int v = vr[b + slot];
+                    if (v >= 0 && nu[b + slot] == INF) {
+                        final int r = s.find(v);
+                        if (r >= 0) s.remove(r);
+                    }
+                }
+                s.mark[0] = s.mark[1] = s.mark[2] = -1;
+                s.step = 3;
+            }
+            if (Op.isDef(o) && vr[b + 2] >= 0) {
+                if (s.count == usableK) return true;
+                if (nu[b + 2] != INF) s.add(vr[b + 2], nu[b + 2], defClass(o, vr[b + 2]));
+            }
+        }
+        return false;
+    }
+
+    private byte defClass(int o, int v) {
+        if (o == Op.LOADI) return REMAT;
+        return (o == Op.LOAD && loadedAt[v] >= 0) ? CLEAN : DIRTY;
+    }
+
+    // The values in PRs partway through the region
+    private static final class State {
+        final int[] vr;
+        final int[] nu;
+        final byte[] cls;
+        final int[] mark = {-1, -1, -1}; // operands of the current op
+        int count;
+        int op;
+        int step;      // next use slot of op, 3 once its uses are done
+        int cost;
+        int evicted;   // live values not in a PR
+
+        State(int k) {
+            vr = new int[k];
+            nu = new int[k];
+            cls = new byte[k];
+        }
+
+        State copy() {
+            return new State(vr.length).set(this);
+        }
+
+        State set(State s) {
+            System.arraycopy(s.vr, 0, vr, 0, s.count);
+            System.arraycopy(s.nu, 0, nu, 0, s.count);
+            System.arraycopy(s.cls, 0, cls, 0, s.count);
+            System.arraycopy(s.mark, 0, mark, 0, 3);
+            count = s.count;
+            op = s.op;
+            step = s.step;
+            cost = s.cost;
+            evicted = s.evicted;
+            return this;
+        }
+
+        int find(int v) {
+            for (int r = 0; r < count; r++) if (vr[r] == v) return r;
+            return -1;
+        }
+
+        // Hash of the point and the values in PRs, in any order
+        long key() {
+            long h = op * 4L + step;
+            long set = 0;
+            for (int r = 0; r < count; r++) {
+                long x = (vr[r] * 3L + cls[r]) * 0x9E3779B97F4A7C15L;
+                x ^= x >>> 29;
+                set += x * 0xBF58476D1CE4E5B9L;
+            }
+            h = (h * 0x94D049BB133111EBL) ^ set;
+            return h ^ (h >>> 31);
+        }
+
+        boolean marked(int v) {
+            return v == mark[0] || v == mark[1] || v == mark[2];
+        }
+
+        void add(int v, int next, byte c) {
+            vr[count] = v;
+            nu[count] = next;
+            cls[count] = c;
+            count++;
+        }
+
+        void remove(int r) {
+            count--;
+            vr[r] = vr[count];
+            nu[r] = nu[count];
+            cls[r] = cls[count];
+        }
+    }
+
+    // A node: the state before its eviction and the victims left to try
+    private static final class Frame {
+        State state;
+        final int[] cand = new int[3];
+        int count;
+        int next;
+
+        int chosen() {
+            return cand[next - 1];
+        }
+    }
+
+    // Least cost each state was reached at, by key. Open addressing, kept at
+    // most half full; key 0 is taken as its neighbour 1
+    private static final class Seen {
+        private long[] keys = new long[1 << 10];
+        private int[] costs = new int[1 << 10];
+        private int size;
+
+        // Record the state at cost, false if it was already reached as cheaply
+        boolean better(long key, int cost) {
+            if (key == 0) key = 1;
+            int mask = keys.length - 1;
+            int h = (int) key & mask;
+            for (; keys[h] != 0; h = (h + 1) & mask) {
+                if (keys[h] == key) {
+                    if (costs[h] <= cost) return false;
+                    costs[h] = cost;
+                    return true;
+                }
+            }
+            keys[h] = key;
+            costs[h] = cost;
+            if (++size * 2 > keys.length) grow();
+            return true;
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final int[] oldCosts = costs;
+            keys = new long[2 * oldKeys.length];
+            costs = new int[keys.length];
+            final int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == 0) continue;
+                int h = (int) oldKeys[i] & mask;
+                while (keys[h] != 0) h = (h + 1) & mask;
+                keys[h] = oldKeys[i];
+                costs[h] = oldCosts[i];
+            }
+        }
+    }
+}
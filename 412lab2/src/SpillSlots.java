@@ -0,0 +1,31 @@
+package src;
+
+import java.util.Arrays;
+
+// Spill slots of one allocator worker, numbered from 0 at the spill base.
+// The lowest free slot goes first, so the values spilled at any one time
+// stay packed just above the base.
+final class SpillSlots {
+    private long[] used = new long[1]; // bit s is set while slot s holds a value
+    private int word;                  // no free slot in any word below this one
+    private int inUse;
+    int most;                          // most slots in use at once
+
+    int take() {
+        int w = word;
+        while (w < used.length && used[w] == -1L) w++;
+        if (w == used.length) used = Arrays.copyOf(used, 2 * used.length);
+        final int slot = (w << 6) + Long.numberOfTrailingZeros(~used[w]);
+        used[w] |= 1L << slot;
+        word = w;
+        if (++inUse > most) most = inUse;
+        return slot;
+    }
+
+    void free(int slot) {
+        final int w = slot >>> 6;
+        used[w] &= ~(1L << slot);
+        if (w < word) word = w;
+        inUse--;
+    }
+}
@@ -0,0 +1,165 @@
+package src;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Per-compile measurements for -stats: wall time and bytes allocated per
+// phase, plus what the allocator had to insert. Every phase also goes out as
+// a JFR event when a recording is on (see JfrEvents).
+//
+// Bytes are counted per thread through HotSpot's ThreadMXBean extension;
+// the -j allocator workers report their own share. Not thread safe: one
+// Stats per compile, filled in by the thread running it.
+public final class Stats {
+    public static final int SCAN = 0, PARSE = 1, OPTIMIZE = 2, RENAME = 3, SCHEDULE = 4, ALLOCATE = 5, EMIT = 6;
+    private static final String[] PHASE = {"scan", "parse", "optimize", "rename", "schedule", "allocate", "emit"};
+
+    private static final boolean JFR = jfrAvailable();
+
+    final String input;
+    int ops;
+    int k = -1;
+    // Set when scanning was timed as a pass of its own, which the compile
+    // doesn't otherwise need: it is shown apart and left out of the total
+    boolean scanSeparate;
+    String cache;        // "hit" or "miss" with -cache, null without
+
+    private final long[] nanos = new long[PHASE.length];
+    private final long[] bytes = new long[PHASE.length];
+    private final boolean[] ran = new boolean[PHASE.length];
+    private final Object[] event = new Object[PHASE.length];
+    private long startNanos;
+    private long startBytes;
+    private final boolean jfr;
+
+    // Optimizer counters
+    long folded;         // arithmetic ops turned into a loadI
+    long reduced;        // mults turned into an lshift
+    long reused;         // ops whose value an earlier op already held
+    long removed;        // ops deleted as dead
+
+    // Allocator counters, summed over every worker
+    long spillStores;    // dirty values stored to a spill slot
+    long reloads;        // values loaded back from a spill slot
+    long memReloads;     // of those, loaded from the address they first came from
+    long remats;         // values rebuilt with loadI instead of a reload
+    long addrLoadIs;     // loadI of a spill slot address into the reserved PR
+    long addrReused;     // spill ops that found their address already there
+    long inserted;       // ops added to the block in all
+    int spillSlots;      // most spill slots in use at once
+    int spillBase;       // address of the first slot
+    boolean spillMayAlias; // no base above every loadI constant fit
+    int colorRounds;     // -color: graphs built, one per region plus one per spill round
+    // -exact regions: searched, searched to the end, given a cheaper plan
+    long searched;
+    long proved;
+    long improved;
+    // Evicted values by cost class: 0 = dirty, 1 = clean, 2 = rematerializable
+    final long[] victims = new long[3];
+
+    public Stats(String input) {
+        this.input = input;
+        this.jfr = JFR && JfrEvents.recording();
+    }
+
+    // Whether a compile without -stats should still measure, for JFR
+    public static boolean wanted() {
+        return JFR && JfrEvents.recording();
+    }
+
+    public void start(int phase) {
+        if (jfr) event[phase] = JfrEvents.begin();
+        startBytes = threadBytes();
+        startNanos = System.nanoTime();
+    }
+
+    public void stop(int phase) {
+        long dt = System.nanoTime() - startNanos;
+        long db = threadBytes() - startBytes;
+        nanos[phase] += dt;
+        bytes[phase] += db;
+        ran[phase] = true;
+        if (jfr) JfrEvents.phase(event[phase], PHASE[phase], input, ops, db);
+    }
+
+    // Bytes allocated elsewhere on behalf of a phase, e.g. by -j workers
+    void addBytes(int phase, long b) {
+        bytes[phase] += b;
+    }
+
+    // Bytes allocated so far by the calling thread, 0 where the JVM can't say
+    static long threadBytes() {
+        com.sun.management.ThreadMXBean t = Threads.BEAN;
+        return t == null ? 0 : t.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Looked up on first use, the management classes are slow to start
+    private static final class Threads {
+        static final com.sun.management.ThreadMXBean BEAN = threadBean();
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        try {
+            ThreadMXBean b = ManagementFactory.getThreadMXBean();
+            if (b instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) b;
+                if (t.isThreadAllocatedMemorySupported()) {
+                    t.setThreadAllocatedMemoryEnabled(true);
+                    return t;
+                }
+            }
+        } catch (LinkageError | UnsupportedOperationException | SecurityException e) {
+            // not HotSpot, report no bytes
+        }
+        return null;
+    }
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    // The allocator counters as one JFR event, once allocation is done
+    void allocated() {
+        if (jfr) JfrEvents.allocation(this);
+    }
+
+    public void print(PrintStream err) {
+        err.printf("stats: %s, %d ops%s%s%n", input, ops, k > 0 ? ", k=" + k : "", cache != null ? ", cache " + cache : "");
+        err.printf("  %-9s %10s %12s%n", "phase", "ms", "alloc KB");
+        long totalNanos = 0, totalBytes = 0;
+        for (int p = 0; p < PHASE.length; p++) {
+            if (!ran[p]) continue;
+            if (p == SCAN && scanSeparate) continue; // after the total
+            totalNanos += nanos[p];
+            totalBytes += bytes[p];
+            err.printf("  %-9s %10.3f %12d%n", PHASE[p], nanos[p] / 1e6, bytes[p] >> 10);
+        }
+        err.printf("  %-9s %10.3f %12d%n", "total", totalNanos / 1e6, totalBytes >> 10);
+        if (scanSeparate) {
+            err.printf("  %-9s %10.3f %12d  (a pass of its own; parse includes scanning again)%n",
+                    PHASE[SCAN], nanos[SCAN] / 1e6, bytes[SCAN] >> 10);
+        }
+        if (ran[OPTIMIZE]) {
+            err.printf("  optimized: %d folded, %d mults reduced, %d redundant, %d dead ops removed%n",
+                    folded, reduced, reused, removed);
+        }
+        if (ran[ALLOCATE]) {
+            err.printf("  inserted %d ops: %d spill stores, %d reloads (%d from the original address),"
+                    + " %d rematerializations, %d address loadIs (%d more saved)%n",
+                    inserted, spillStores, reloads, memReloads, remats, addrLoadIs, addrReused);
+            err.printf("  victims: %d dirty, %d clean, %d rematerializable%n",
+                    victims[0], victims[1], victims[2]);
+            if (colorRounds > 0) err.printf("  coloring: %d graphs built%n", colorRounds);
+            if (searched > 0) err.printf("  exact: %d regions searched, %d completely, %d improved%n",
+                    searched, proved, improved);
+            if (spillSlots > 0) err.printf("  spill area: %d words at %d%s%n", spillSlots, spillBase,
+                    spillMayAlias ? " (no room above the block's constants, may overlap its addresses)" : "");
+        }
+    }
+}
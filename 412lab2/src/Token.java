@@ -1,5 +1,7 @@
 package src;
 
+import java.io.IOException;
+
 public class Token {
     public enum TokenCategory {
         MEMOP,     // load, store
@@ -40,25 +42,52 @@ public class Token {
         }
     }
 
-    private final TokenCategory category;
-    private final TokenLexeme lexeme;   // used for opcodes, punctuation, EOF/EOL
-    private final int intValue;    // used for REG and CONSTANT
-    private final int lineNumber;
+    // The scanner owns one Token and refills it for every lexeme, so callers
+    // must read what they need before asking for the next token
+    private TokenCategory category;
+    private TokenLexeme lexeme;   // used for opcodes, punctuation, EOF/EOL
+    private int intValue;         // used for REG and CONSTANT
+    private int lineNumber;
+
+    public Token() {}
 
-    // Constructor for REG and CONSTANT
-    public Token(TokenCategory category, TokenLexeme lexeme, Integer intValue, int lineNumber) {
+    // Overwrite the cursor with the next token
+    Token set(TokenCategory category, TokenLexeme lexeme, int intValue, int lineNumber) {
         this.category = category;
         this.lexeme = lexeme;
         this.intValue = intValue;
         this.lineNumber = lineNumber;
+        return this;
     }
-    
 
     public TokenCategory getCategory() { return category; }
     public TokenLexeme getLexeme() { return lexeme; }
     public int getIntValue() { return intValue; }
     public int getLineNumber() { return lineNumber; }
 
+    // Print for -s, same text as toString()
+    public void print(Emitter out) throws IOException {
+        out.num(lineNumber).text(": < ").text(category.name()).text(", \"");
+        switch (category) {
+            case REG:
+                out.reg(intValue);
+                break;
+            case CONST:
+                out.num(intValue);
+                break;
+            case NEWLINE:
+                out.text("\\n");
+                break;
+            case ENDFILE: // empty string
+                break;
+            default:
+                // MEMOP, LOADI, ARITHOP, OUTPUT, NOP, COMMA, INTO
+                if (lexeme != null) out.text(lexeme.text());
+                break;
+        }
+        out.text("\" >").nl();
+    }
+
     @Override
     public String toString() {
         String value;
@@ -0,0 +1,195 @@
+package src;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// Synthetic straight-line ILOC for stress tests and benchmarks. The block is
+// written op by op, so it can be far larger than memory, and a given
+// configuration always produces the same text.
+//
+// Every value is defined before it is used and used at least once, and at
+// most maxLive values are live between any two ops, so Renamer reports
+// maxLive once the block is long enough to fill up. With regionOps, a region
+// is drained only once it has also reached maxLive, so when filling up takes
+// longer than regionOps the regions grow to what it takes.
+public final class Workload {
+    public static final int ADDR_BASE = 1024;
+    public static final int ADDRS = 256;    // memory words the block touches
+
+    public long ops = 100000;     // block size in ops
+    public int maxLive = 16;      // register pressure, at least 2
+    public int loadIShare = 30;   // % of computed values defined by loadI
+    public int memShare = 20;     // % of ops that are load, store or output
+    public long regionOps = 0;    // let everything die every ~regionOps ops, 0 for never
+    public long seed = 412;
+
+    private Emitter out;
+    private SplittableRandom rnd;
+    private long emitted;
+    // Live values: the SR holding each and how many uses it still has
+    private int[] val;
+    private int[] left;
+    private int live;
+    private int peak; // most values live at once in the current region
+    // SR names not holding a live value
+    private int[] freeSR;
+    private int nFree;
+    private int nextSR;
+    private final boolean[] stored = new boolean[ADDRS];
+    private int storedCount;
+
+    public void generate(Emitter out) throws IOException {
+        if (maxLive < 2) throw new IllegalArgumentException("maxLive must be at least 2");
+        this.out = out;
+        rnd = new SplittableRandom(seed);
+        emitted = 0;
+        val = new int[maxLive + 1];
+        left = new int[maxLive + 1];
+        live = 0;
+        peak = 0;
+        freeSR = new int[maxLive + 2];
+        nFree = 0;
+        nextSR = 0;
+        Arrays.fill(stored, false);
+        storedCount = 0;
+
+        long regionStart = 0;
+        // A step writes at most 2 ops and one more live value, and draining
+        // takes one op per live value plus one
+        while (emitted + live + 4 <= ops) {
+            if (regionOps > 0 && emitted - regionStart >= regionOps && peak == maxLive) {
+                drain();
+                regionStart = emitted;
+                peak = 0;
+            } else {
+                step();
+            }
+        }
+        drain();
+        while (emitted < ops) emit(Op.NOP, 0, 0, 0);
+    }
+
+    private void step() throws IOException {
+        if (rnd.nextInt(100) < memShare && (live < maxLive || storedCount > 0)) {
+            memoryOp();
+        } else if (live == 0 || (live < maxLive && rnd.nextInt(100) < loadIShare)) {
+            int d = newSR();
+            emit(Op.LOADI, rnd.nextInt(ADDR_BASE), 0, d);
+            born(d);
+        } else {
+            arith();
+        }
+    }
+
+    // Two live operands, one new value. At full pressure one operand has to die
+    private void arith() throws IOException {
+        int a = rnd.nextInt(live);
+        int b = rnd.nextInt(live);
+        if (live == maxLive) left[a] = 1;
+        int opc = Op.ADD + rnd.nextInt(Op.RSHIFT - Op.ADD + 1);
+        int s0 = val[a];
+        int s1 = val[b];
+        useAll(a, b);
+        int d = newSR();
+        emit(opc, s0, s1, d);
+        born(d);
+    }
+
+    // load and store take their address from a fresh loadI, which needs a
+    // free register; output needs none but only reads words already stored
+    private void memoryOp() throws IOException {
+        int kind = rnd.nextInt(100);
+        if (live == maxLive || (kind < 15 && storedCount > 0)) {
+            int w;
+            do w = rnd.nextInt(ADDRS); while (!stored[w]);
+            emit(Op.OUTPUT, ADDR_BASE + 4 * w, 0, 0);
+            return;
+        }
+        int w = rnd.nextInt(ADDRS);
+        int addr = newSR();
+        emit(Op.LOADI, ADDR_BASE + 4 * w, 0, addr);
+        if (kind < 60 || live == 0) {
+            release(addr);
+            int d = newSR();
+            emit(Op.LOAD, addr, 0, d);
+            born(d);
+        } else {
+            int v = rnd.nextInt(live);
+            emit(Op.STORE, val[v], 0, addr);
+            release(addr);
+            useAll(v, v);
+            if (!stored[w]) {
+                stored[w] = true;
+                storedCount++;
+            }
+        }
+    }
+
+    // Fold the live values together and store the last one, leaving none live
+    private void drain() throws IOException {
+        while (live > 1) {
+            int s0 = val[live - 2];
+            int s1 = val[live - 1];
+            left[live - 2] = left[live - 1] = 1;
+            useAll(live - 2, live - 1);
+            int d = newSR();
+            emit(Op.ADD, s0, s1, d);
+            born(d);
+        }
+        if (live == 1) {
+            int w = rnd.nextInt(ADDRS);
+            int addr = newSR();
+            emit(Op.LOADI, ADDR_BASE + 4 * w, 0, addr);
+            emit(Op.STORE, val[0], 0, addr);
+            release(addr);
+            left[0] = 1;
+            useAll(0, 0);
+            if (!stored[w]) {
+                stored[w] = true;
+                storedCount++;
+            }
+        }
+    }
+
+    // One use of live values a and b (possibly the same), dropping those with none left
+    private void useAll(int a, int b) {
+        boolean deadA = --left[a] == 0;
+        boolean deadB = a != b && --left[b] == 0;
+        // Remove the higher index first, removal moves the last value down
+        if (a < b) {
+            if (deadB) remove(b);
+            if (deadA) remove(a);
+        } else {
+            if (deadA) remove(a);
+            if (deadB) remove(b);
+        }
+    }
+
+    private void remove(int i) {
+        release(val[i]);
+        live--;
+        val[i] = val[live];
+        left[i] = left[live];
+    }
+
+    private void born(int s) {
+        val[live] = s;
+        left[live] = 1 + rnd.nextInt(4);
+        live++;
+        if (live > peak) peak = live;
+    }
+
+    private int newSR() {
+        return nFree > 0 ? freeSR[--nFree] : nextSR++;
+    }
+
+    private void release(int s) {
+        freeSR[nFree++] = s;
+    }
+
+    private void emit(int opc, int s0, int s1, int s2) throws IOException {
+        out.op(opc, s0, s1, s2);
+        emitted++;
+    }
+}
@@ -0,0 +1,96 @@
+package src;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class ilocgen {
+
+	private static void printHelp() {
+		System.out.println("Usage: 412gen [options]");
+		System.out.println("Writes a synthetic ILOC block to stdout, the same one for the same options.");
+		System.out.println("  -n <ops>      Block size in ops, k/M/G suffixes allowed (default 100k)");
+		System.out.println("  -l <maxLive>  Register pressure the renamer will report, at least 2 (default 16)");
+		System.out.println("  -i <pct>      Percent of computed values defined by loadI (default 30)");
+		System.out.println("  -m <pct>      Percent of ops that are load, store or output (default 20)");
+		System.out.println("  -r <ops>      Let every value die about every <ops> ops, making regions (default never);");
+		System.out.println("                a region lasts at least until it reaches the -l pressure");
+		System.out.println("  -s <seed>     Random seed (default 412)");
+		System.out.println("  -o <file>     Write to <file> instead of stdout");
+	}
+
+	public static void main(String[] args) {
+		Workload w = new Workload();
+		String outFile = null;
+		for (int a = 0; a < args.length; a++) {
+			String flag = args[a];
+			if (flag.equals("-h")) {
+				printHelp();
+				return;
+			}
+			if (a + 1 >= args.length) {
+				System.err.println("ERROR: " + (flag.startsWith("-") ? flag + " requires an argument" : "Unknown argument " + flag));
+				printHelp();
+				System.exit(1);
+			}
+			String v = args[++a];
+			try {
+				switch (flag) {
+					case "-n": w.ops = size(v); break;
+					case "-l": w.maxLive = Integer.parseInt(v); break;
+					case "-i": w.loadIShare = percent(v); break;
+					case "-m": w.memShare = percent(v); break;
+					case "-r": w.regionOps = size(v); break;
+					case "-s": w.seed = Long.parseLong(v); break;
+					case "-o": outFile = v; break;
+					default:
+						System.err.println("ERROR: Unknown argument " + flag);
+						printHelp();
+						System.exit(1);
+				}
+			} catch (NumberFormatException nfe) {
+				System.err.println("ERROR: bad value for " + flag + ": " + v);
+				System.exit(1);
+			}
+		}
+		if (w.maxLive < 2) {
+			System.err.println("ERROR: -l must be at least 2.");
+			System.exit(1);
+		}
+
+		try {
+			if (outFile == null) {
+				Emitter out = Emitter.stdout();
+				w.generate(out);
+				out.flush();
+			} else {
+				try (FileOutputStream fos = new FileOutputStream(outFile)) {
+					Emitter out = new Emitter(fos.getChannel());
+					w.generate(out);
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR: I/O error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	// Non-negative count with an optional k, M or G (powers of 1000) suffix
+	private static long size(String v) {
+		long scale = 1;
+		char last = v.isEmpty() ? ' ' : Character.toLowerCase(v.charAt(v.length() - 1));
+		if (last == 'k') scale = 1000L;
+		else if (last == 'm') scale = 1000000L;
+		else if (last == 'g') scale = 1000000000L;
+		if (scale != 1) v = v.substring(0, v.length() - 1);
+		long n = Long.parseLong(v);
+		if (n < 0 || n > Long.MAX_VALUE / scale) throw new NumberFormatException(v);
+		return n * scale;
+	}
+
+	private static int percent(String v) {
+		int p = Integer.parseInt(v);
+		if (p < 0 || p > 100) throw new NumberFormatException(v);
+		return p;
+	}
+}
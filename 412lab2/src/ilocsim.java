@@ -0,0 +1,153 @@
+package src;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+public class ilocsim {
+
+	private static void printHelp() {
+		System.out.println("Usage: 412sim [options] <file>");
+		System.out.println("       412sim [options] -c <original> <allocated>");
+		System.out.println("       412sim [options] -k <k> <file>");
+		System.out.println("Runs an ILOC block and reports cycles and memory traffic on stderr.");
+		System.out.println("  <file>                 Run it and print its output values");
+		System.out.println("  -c <orig> <alloc>      Run both and check they print the same values");
+		System.out.println("  -k <k> <file>          Allocate <file> with k registers in memory, then as -c");
+		System.out.println("  -lat <op>=<n>,...      Latency in cycles, e.g. -lat load=3,store=3,mult=3 (the defaults;");
+		System.out.println("                         every other op takes 1)");
+		System.out.println("  -q                     Do not print output values");
+		System.out.println("Memory is byte addressed in 4-byte words; a load, store or output at an address");
+		System.out.println("that is not a multiple of 4 stops the run with an error.");
+	}
+
+	public static void main(String[] args) {
+		int[] latency = Simulator.defaultLatency();
+		boolean quiet = false;
+		int a = 0;
+		while (a < args.length && (args[a].equals("-lat") || args[a].equals("-q") || args[a].equals("-h"))) {
+			if (args[a].equals("-h")) {
+				printHelp();
+				return;
+			}
+			if (args[a].equals("-q")) {
+				quiet = true;
+				a++;
+				continue;
+			}
+			if (a + 1 >= args.length || !Simulator.parseLatency(args[a + 1], latency)) {
+				System.err.println("ERROR: -lat takes <op>=<cycles>[,<op>=<cycles>...]");
+				System.exit(1);
+			}
+			a += 2;
+		}
+		int rest = args.length - a;
+		try {
+			if (rest == 1) {
+				System.exit(runOne(args[a], latency, quiet) ? 0 : 1);
+			} else if (rest == 3 && args[a].equals("-c")) {
+				IRList orig = parse(args[a + 1]);
+				IRList alloc = parse(args[a + 2]);
+				if (orig == null || alloc == null) System.exit(1);
+				Simulator s1 = simulator(latency);
+				s1.run(orig);
+				Simulator s2 = simulator(latency);
+				s2.run(alloc);
+				System.exit(compare(s1, s2, System.err) ? 0 : 1);
+			} else if (rest == 3 && args[a].equals("-k")) {
+				int k;
+				try {
+					k = Integer.parseInt(args[a + 1]);
+				} catch (NumberFormatException nfe) {
+					k = 0;
+				}
+				if (k < 3 || k > lab2.MAX_K) {
+					System.err.println("ERROR: k must be in [3, " + lab2.MAX_K + "].");
+					System.exit(1);
+				}
+				IRList ir = parse(args[a + 2]);
+				if (ir == null) System.exit(1);
+				Simulator s1 = simulator(latency);
+				s1.run(ir);
+				Allocator.allocate(ir, k, Renamer.rename(ir));
+				Simulator s2 = simulator(latency);
+				s2.runAllocated(ir, k);
+				System.exit(compare(s1, s2, System.err) ? 0 : 1);
+			} else {
+				printHelp();
+				System.exit(1);
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR: I/O error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static boolean runOne(String path, int[] latency, boolean quiet) throws IOException {
+		IRList ir = parse(path);
+		if (ir == null) return false;
+		Simulator sim = simulator(latency);
+		sim.run(ir);
+		if (!quiet) {
+			Emitter out = Emitter.stdout();
+			for (int i = 0; i < sim.outputCount(); i++) out.num(sim.output(i)).nl();
+			out.flush();
+		}
+		report("", sim, System.err);
+		return !faulted("", sim, System.err);
+	}
+
+	// Report a run that stopped at an unaligned address
+	private static boolean faulted(String label, Simulator sim, PrintStream err) {
+		if (sim.fault() == null) return false;
+		err.println("ERROR: " + label + sim.fault());
+		return true;
+	}
+
+	// Both runs must print the same values in the same order
+	private static boolean compare(Simulator orig, Simulator alloc, PrintStream err) {
+		report("original:  ", orig, err);
+		report("allocated: ", alloc, err);
+		// check both, so each fault is reported
+		if (faulted("original: ", orig, err) | faulted("allocated: ", alloc, err)) return false;
+		int n = Math.min(orig.outputCount(), alloc.outputCount());
+		for (int i = 0; i < n; i++) {
+			if (orig.output(i) != alloc.output(i)) {
+				err.printf("MISMATCH at output %d: original %d, allocated %d%n", i + 1, orig.output(i), alloc.output(i));
+				return false;
+			}
+		}
+		if (orig.outputCount() != alloc.outputCount()) {
+			err.printf("MISMATCH: original prints %d values, allocated %d%n", orig.outputCount(), alloc.outputCount());
+			return false;
+		}
+		err.printf("OK: %d values match, allocated code takes %+.1f%% cycles%n", n,
+				orig.cycles == 0 ? 0.0 : 100.0 * (alloc.cycles - orig.cycles) / orig.cycles);
+		return true;
+	}
+
+	private static void report(String label, Simulator sim, PrintStream err) {
+		err.printf("%s%d cycles, %d ops, %d loads, %d stores, %d outputs%n",
+				label, sim.cycles, sim.ops, sim.loads, sim.stores, sim.outputs);
+	}
+
+	private static Simulator simulator(int[] latency) {
+		Simulator sim = new Simulator();
+		System.arraycopy(latency, 0, sim.latency, 0, latency.length);
+		return sim;
+	}
+
+	private static IRList parse(String path) throws IOException {
+		if (!new File(path).canRead()) {
+			System.err.println("ERROR: cannot open file: " + path);
+			return null;
+		}
+		Parser parser = new Parser(new Scanner(path));
+		IRList ir = parser.parse();
+		if (parser.hadErrors()) {
+			System.err.println("Parse found errors, aborting");
+			return null;
+		}
+		return ir;
+	}
+}
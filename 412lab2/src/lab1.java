@@ -1,6 +1,8 @@
 package src;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 
 public class lab1 {
     public static void main(String[] args) { parseArguments(args); }
@@ -63,12 +65,34 @@ public class lab1 {
                     printHelp();
                     break;
                 case "-s": {
-                    Scanner scanner = new Scanner(filename);
+                    final Emitter out = Emitter.stdout();
+                    // Tokens are buffered, so flush them before each error
+                    // to keep the error next to where it happened
+                    PrintStream err = new PrintStream(new OutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.flush();
+                            System.err.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.flush();
+                            System.err.write(b, off, len);
+                        }
+
+                        @Override
+                        public void flush() {
+                            System.err.flush();
+                        }
+                    }, true);
+                    Scanner scanner = new Scanner(filename, err);
                     Token tok;
                     do {
                         tok = scanner.nextToken();
-                        System.out.println(tok);
+                        tok.print(out);
                     } while (tok.getCategory() != Token.TokenCategory.ENDFILE);
+                    out.flush();
                     break;
                 }
                 case "-p": {
@@ -89,7 +113,9 @@ public class lab1 {
                     if (parser.hadErrors()) {
                         System.err.println("\nDue to the syntax error, run terminates.");
                     } else {
-                        ir.print(); // Print out IR
+                        Emitter out = Emitter.stdout();
+                        ir.print(out); // Print out IR
+                        out.flush();
                     }
                     break;
                 }
@@ -1,129 +1,615 @@
 package src;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class lab2 {
 
+	// Largest register count accepted; the allocator's per-op cost does not grow with k
+	static final int MAX_K = 1 << 16;
+
 	// Heplper function to stdout help message
-	private static void printHelp() {
-		System.out.println("Usage:");
-		System.out.println("  412alloc -h 		  # Show this help message");
-		System.out.println("  412alloc -x <file>          # Rename only, print VR code");
-		System.out.println("  412alloc <k> <file>         # Allocate registers with k registers");
+	private static void printHelp(Emitter out) throws IOException {
+		out.text("Usage:\n");
+		out.text("  412alloc -h 		  # Show this help message\n");
+		out.text("  412alloc -x <file>          # Rename only, print VR code\n");
+		out.text("  412alloc <k> <file>         # Allocate registers with k registers\n");
+		out.text("  412alloc -j <n> <k> <file>  # Parse in chunks and allocate independent regions on n threads\n");
+		out.text("  412alloc <k> <input>...     # Batch: inputs are files, directories or @manifest files\n");
+		out.text("  412alloc -j <n> <k> <input>...          # Batch on n worker threads\n");
+		out.text("  412alloc -o <dir> <k> <input>...        # Batch, one output file per input in <dir>\n");
+		out.text("  412alloc -stats <k> <file>  # Also report per-phase time, allocation and spill counts on stderr\n");
+		out.text("  412alloc -O <k> <file>      # Fold constants, reuse values and drop dead code first\n");
+		out.text("  412alloc -color <k> <file>  # Allocate by graph coloring instead of the local allocator\n");
+		out.text("  412alloc -exact <nodes> <k> <file>  # Search for the cheapest spill choices, up to <nodes> per region\n");
+		out.text("  412alloc -cache <dir> <k> <input>...   # Reuse outputs stored in <dir> for unchanged inputs\n");
+		out.text("  412alloc -cachesize <MB> ...      # Most the cache directory may hold (default 256)\n");
+		out.text("  412alloc -sched pre|post <k> <file>  # List-schedule before or after allocation\n");
+		out.text("  412alloc -save <out> <k>|-x <file>  # Also write the renamed block to <out> in binary\n");
+		out.text("  412alloc -load <k>|-x <input>...  # Inputs are binary blocks from -save\n");
+		out.text("  412alloc -lat <op>=<n>,... ...     # Latencies for -sched (default load=3,store=3,mult=3)\n");
+		out.text("  412alloc -daemon [port]     # Serve requests from the 412alloc script on 127.0.0.1\n");
+		out.text("  412alloc -stop              # Stop the running daemon\n");
+		out.text("  An input of - reads ILOC from standard input.\n");
 	}
 
-	// Helper function to print allocated code
-	public static void printAllocated(IRList block) {
-		for (Op p = block.head; p != null; p = p.next) {
-		switch (p.opc) {
-			case LOADI:
-			System.out.printf("loadI %d => r%d\n", p.sr[0], p.pr[2]);
-			break;
-			case LOAD:
-			System.out.printf("load r%d => r%d\n", p.pr[0], p.pr[2]);
-			break;
-			case STORE:
-			System.out.printf("store r%d => r%d\n", p.pr[0], p.pr[2]);
-			break;
-			case ADD:
-			System.out.printf("add r%d, r%d => r%d\n", p.pr[0], p.pr[1], p.pr[2]);
-			break;
-			case SUB:
-			System.out.printf("sub r%d, r%d => r%d\n", p.pr[0], p.pr[1], p.pr[2]);
-			break;
-			case MULT:
-			System.out.printf("mult r%d, r%d => r%d\n", p.pr[0], p.pr[1], p.pr[2]);
-			break;
-			case LSHIFT:
-			System.out.printf("lshift r%d, r%d => r%d\n", p.pr[0], p.pr[1], p.pr[2]);
-			break;
-			case RSHIFT:
-			System.out.printf("rshift r%d, r%d => r%d\n", p.pr[0], p.pr[1], p.pr[2]);
-			break;
-			case OUTPUT:
-			System.out.printf("output %d\n", p.sr[0]);
-			break;
-			case NOP:
-			System.out.println("nop");
-			break;
+	// Where an invocation runs: relative paths resolve against cwd (the JVM's
+	// own when null) and the input "-" is read from in, at most once
+	static final class Env {
+		final File cwd;
+		private final InputStream in;
+		private byte[] stdin;
+
+		Env(File cwd, InputStream in) {
+			this.cwd = cwd;
+			this.in = in;
+		}
+
+		File file(String path) {
+			File f = new File(path);
+			return (cwd == null || f.isAbsolute()) ? f : new File(cwd, path);
+		}
+
+		synchronized byte[] stdin() throws IOException {
+			if (stdin == null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] chunk = new byte[1 << 16];
+				int n;
+				while ((n = in.read(chunk)) > 0) bytes.write(chunk, 0, n);
+				stdin = bytes.toByteArray();
 			}
+			return stdin;
+		}
+	}
+
+	// What to do with each input, from the command line flags
+	static final class Options {
+		int k = -1;
+		boolean renameOnly;
+		int threads = 1;        // for the regions of one input
+		boolean stats;
+		boolean optimize;
+		boolean color;          // Colorer instead of Allocator
+		long exact;             // search budget per region, 0 for the heuristic alone
+		Cache cache;            // null without -cache
+		boolean load;           // inputs are IRFiles, not ILOC text
+		File save;              // where to write the renamed block, null without -save
+		int schedule = NO_SCHEDULE;
+		int[] latency = Simulator.defaultLatency();
+
+		// The same with every input on one thread, for batch workers
+		Options oneThread() {
+			Options o = new Options();
+			o.k = k;
+			o.renameOnly = renameOnly;
+			o.stats = stats;
+			o.optimize = optimize;
+			o.color = color;
+			o.exact = exact;
+			o.cache = cache;
+			o.load = load;
+			o.schedule = schedule;
+			o.latency = latency;
+			return o;
 		}
 	}
 
+	static final int NO_SCHEDULE = 0, SCHEDULE_PRE = 1, SCHEDULE_POST = 2;
+
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("-daemon")) {
+			System.exit(Daemon.serve(args));
+		}
+		if (args.length > 0 && args[0].equals("-stop")) { // the script forwards this when a daemon is up
+			System.err.println("ERROR: no 412alloc daemon is running");
+			System.exit(1);
+		}
+		Emitter out = Emitter.stdout();
+		int status;
+		try {
+			status = run(args, new Env(null, System.in), out, System.err);
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("ERROR: I/O error: " + e.getMessage());
+			status = 1;
+		}
+		if (status != 0) System.exit(status);
+	}
+
+	// Whole command line against the given output and error streams.
+	// Returns the exit status, 0 when every input went through
+	static int run(String[] args, Env env, Emitter out, PrintStream err) throws IOException {
 		// Print help commands case
 		if (args.length == 0 || args[0].equals("-h")) { 
-			printHelp();
-			return;
+			printHelp(out);
+			return 0;
 		}
 
-		boolean renameOnly = false;
-		int k;
-		String path;
+		Options opt = new Options();
+		String outDir = null;
+		String cacheDir = null;
+		long cacheMB = 256;
+		int a = 0;
+		// -j / -o / -stats / -O / -color / -exact / -cache / -cachesize / -load / -save / -sched / -lat flag cases, strip them and carry on with the remaining arguments
+		while (a < args.length && isFlag(args[a])) {
+			if (args[a].equals("-stats")) {
+				opt.stats = true;
+				a++;
+				continue;
+			}
+			if (args[a].equals("-O")) {
+				opt.optimize = true;
+				a++;
+				continue;
+			}
+			if (args[a].equals("-color")) {
+				opt.color = true;
+				a++;
+				continue;
+			}
+			if (args[a].equals("-load")) {
+				opt.load = true;
+				a++;
+				continue;
+			}
+			if (a + 1 >= args.length) {
+				err.println("ERROR: " + args[a] + " requires an argument");
+				return 1;
+			}
+			String v = args[a + 1];
+			if (args[a].equals("-o")) {
+				outDir = v;
+			} else if (args[a].equals("-sched")) {
+				if (v.equals("pre")) {
+					opt.schedule = SCHEDULE_PRE;
+				} else if (v.equals("post")) {
+					opt.schedule = SCHEDULE_POST;
+				} else {
+					err.println("ERROR: -sched must be pre or post.");
+					return 1;
+				}
+			} else if (args[a].equals("-exact")) {
+				try {
+					opt.exact = Long.parseLong(v);
+				} catch (NumberFormatException nfe) {
+					opt.exact = 0;
+				}
+				if (opt.exact < 1) {
+					err.println("ERROR: -exact node budget must be a positive integer.");
+					return 1;
+				}
+			} else if (args[a].equals("-save")) {
+				opt.save = env.file(v);
+			} else if (args[a].equals("-cache")) {
+				cacheDir = v;
+			} else if (args[a].equals("-cachesize")) {
+				try {
+					cacheMB = Long.parseLong(v);
+				} catch (NumberFormatException nfe) {
+					cacheMB = 0;
+				}
+				if (cacheMB < 1) {
+					err.println("ERROR: -cachesize must be a positive number of MB.");
+					return 1;
+				}
+			} else if (args[a].equals("-lat")) {
+				if (!Simulator.parseLatency(v, opt.latency)) {
+					err.println("ERROR: -lat takes <op>=<cycles>[,<op>=<cycles>...]");
+					return 1;
+				}
+			} else {
+				try {
+					opt.threads = Integer.parseInt(v);
+				} catch (NumberFormatException nfe) {
+					opt.threads = 0;
+				}
+				if (opt.threads < 1) {
+					err.println("ERROR: -j thread count must be a positive integer.");
+					return 1;
+				}
+			}
+			a += 2;
+		}
+		if (a >= args.length) {
+			printHelp(out);
+			return 1;
+		}
 		// -x flag case
-		if (args[0].equals("-x")) {
-			if (args.length != 2) { // Must include single pathname
-				System.err.println("ERROR: -x requires a single pathname");
-				return;
-			}
-			renameOnly = true;
-			k = -1;
-			path = args[1];
+		if (args[a].equals("-x")) {
+			opt.renameOnly = true;
 		} else { // k flag case
-			if (args.length != 2) { // Must include single pathname
-				System.err.println("ERROR: -x requires a single pathname");
-				return;
-			}
+			int k;
 			try {
-				k = Integer.parseInt(args[0]);
+				k = Integer.parseInt(args[a]);
 			} catch (NumberFormatException nfe) {
-				System.err.println("ERROR: first argument must be an integer k (3..64).");
-				return;
+				err.println("ERROR: first argument must be an integer k (3.." + MAX_K + ").");
+				return 1;
 			}
-			if (k < 3 || k > 64) { // k must be valid range
-				System.err.println("ERROR: k must be in [3, 64].");
-				return;
+			if (k < 3 || k > MAX_K) { // k must be valid range
+				err.println("ERROR: k must be in [3, " + MAX_K + "].");
+				return 1;
+			}
+			opt.k = k;
 		}
-			renameOnly = false;
-			path = args[1];
+		a++;
+		if (a >= args.length) { // Must include a pathname
+			err.println("ERROR: " + (opt.renameOnly ? "-x" : "k") + " requires a pathname");
+			return 1;
 		}
-		
-		// Happy case, extract the linked list from lab1
-		// If renamer flag, invoke Renamer class printVR to see VR form
-		// Else continue with allocation
-		try {
-			File f = new File(path);
-			if (!f.canRead()) {
-				System.err.println("ERROR: cannot open file: " + f.getPath());
-				return;
+
+		List<String> paths = expandInputs(Arrays.copyOfRange(args, a, args.length), env, err);
+		if (paths == null) return 1;
+		final boolean single = paths.size() == 1 && outDir == null && args.length - a == 1;
+		if (opt.save != null && (!single || cacheDir != null)) {
+			err.println("ERROR: -save takes a single input and no -cache.");
+			return 1;
+		}
+		if (cacheDir != null) opt.cache = new Cache(env.file(cacheDir), cacheMB << 20);
+		int status;
+		// One plain file: stream straight through, threads go to its regions
+		if (single) {
+			status = compile(paths.get(0), env, opt, out, err) ? 0 : 1;
+		} else {
+			status = batch(paths, env, opt, outDir, out, err);
+		}
+		if (opt.cache != null && opt.stats) {
+			err.printf("cache: %d hits, %d misses%n", opt.cache.hits.get(), opt.cache.misses.get());
+		}
+		return status;
+	}
+
+	private static boolean isFlag(String arg) {
+		return arg.equals("-j") || arg.equals("-o") || arg.equals("-stats") || arg.equals("-O")
+				|| arg.equals("-color") || arg.equals("-exact")
+				|| arg.equals("-cache") || arg.equals("-cachesize") || arg.equals("-load") || arg.equals("-save")
+				|| arg.equals("-sched") || arg.equals("-lat");
+	}
+
+	// Happy case, extract the IR from lab1
+	// If renamer flag, invoke Renamer class printVR to see VR form
+	// Else continue with allocation. Returns false if the file had errors.
+	// The path "-" compiles the invocation's standard input. With -stats
+	// the phase report goes to err after the code
+	static boolean compile(String path, Env env, Options opt, Emitter out, PrintStream err) throws IOException {
+		final boolean showStats = opt.stats;
+		Stats stats = (showStats || Stats.wanted()) ? new Stats(path) : null;
+		if (showStats && !opt.load) {
+			// Time a scan-only pass first, the parser pulls tokens as it goes.
+			// Timing each token inside the parser costs about as much as this
+			// pass, so the pass is reported on its own, outside the total
+			Scanner pass = open(path, env, NO_ERRORS);
+			if (pass == null) {
+				err.println("ERROR: cannot open file: " + path);
+				return false;
+			}
+			stats.start(Stats.SCAN);
+			int ops = 0;
+			for (Token.TokenCategory c; (c = pass.nextToken().getCategory()) != Token.TokenCategory.ENDFILE; ) {
+				if (c == Token.TokenCategory.MEMOP || c == Token.TokenCategory.LOADI || c == Token.TokenCategory.ARITHOP
+						|| c == Token.TokenCategory.OUTPUT || c == Token.TokenCategory.NOP) ops++;
+			}
+			stats.ops = ops; // for the scan's JFR event, the parse sets the real count
+			stats.stop(Stats.SCAN);
+			stats.scanSeparate = true;
+		}
+		if (stats != null) stats.start(Stats.PARSE);
+		IRList irList;
+		boolean parseErrors = false;
+		Renamer named = null; // from a -load file that has them
+		final long size = path.equals("-") ? env.stdin().length : env.file(path).length();
+		if (opt.load) { // a block from -save, no scanning or parsing
+			final IRFile loaded = load(path, env);
+			if (loaded == null) {
+				err.println("ERROR: cannot open file: " + path);
+				return false;
+			}
+			irList = loaded.ir;
+			named = loaded.renamed;
+		} else if (ChunkParser.worthIt(size, opt.threads) && (path.equals("-") || env.file(path).canRead())) {
+			// Big enough to scan and parse in chunks on the -j threads
+			ChunkParser front = path.equals("-")
+					? ChunkParser.parse(ByteBuffer.wrap(env.stdin()), opt.threads, err, stats)
+					: ChunkParser.parse(env.file(path).getPath(), opt.threads, err, stats);
+			irList = front.ir;
+			parseErrors = front.hadErrors;
+		} else {
+			Scanner scanner = open(path, env, err);
+			if (scanner == null) {
+				err.println("ERROR: cannot open file: " + path);
+				return false;
 			}
-			Scanner scanner = new Scanner(f.getPath());
 			Parser parser = new Parser(scanner);
-			IRList irList = parser.parse();
-			if (parser.hadErrors()) {
-				System.err.println("Parse found errors, aborting");
-				return;
-			}
-			// Rename phase
-			Renamer renameResult = Renamer.rename(irList);
-			if (renameOnly) {
-				renameResult.printVR(irList);
-				return;
-			}
-			
-			// Allocation phase
-			Allocator alloc = new Allocator();
-			alloc.allocate(irList, k, renameResult.vrCount, renameResult.maxLive);
-		} catch (IOException e) {
-			System.err.println("ERROR: I/O error: " + e.getMessage());
+			irList = parser.parse();
+			parseErrors = parser.hadErrors();
+		}
+		if (stats != null) {
+			stats.ops = irList.count;
+			stats.stop(Stats.PARSE);
+		}
+		if (parseErrors) {
+			err.println("Parse found errors, aborting");
+			return false;
+		}
+		Cache.Entry entry = null;
+		if (opt.cache != null) {
+			final String key = Cache.key(irList, opt);
+			if (stats != null) stats.start(Stats.EMIT);
+			if (opt.cache.fetch(key, out)) { // the stored output, no renaming or allocation
+				if (stats != null) {
+					out.flush();
+					stats.stop(Stats.EMIT);
+					stats.cache = "hit";
+					if (showStats) stats.print(err);
+				}
+				return true;
+			}
+			if (stats != null) {
+				stats.stop(Stats.EMIT);
+				stats.cache = "miss";
+			}
+			entry = opt.cache.store(key);
+		}
+		// On a miss the code goes to the cache entry, which copies it to out
+		final Emitter code = (entry == null) ? out : entry.emitter();
+		boolean done = false;
+		try {
+			if (opt.optimize) {
+				if (stats != null) stats.start(Stats.OPTIMIZE);
+				irList = Optimizer.optimize(irList, stats);
+				if (stats != null) stats.stop(Stats.OPTIMIZE);
+			}
+			// Rename phase, unless the names were loaded with the block
+			Renamer renameResult = named;
+			if (renameResult == null || opt.optimize) {
+				if (stats != null) stats.start(Stats.RENAME);
+				renameResult = Renamer.rename(irList);
+				if (stats != null) stats.stop(Stats.RENAME);
+			}
+			if (opt.schedule == SCHEDULE_PRE) { // on the VR names, then rename the new order
+				if (stats != null) stats.start(Stats.SCHEDULE);
+				Renamer.adoptVR(irList);
+				Scheduler.schedule(irList, opt.latency);
+				renameResult = Renamer.rename(irList);
+				if (stats != null) stats.stop(Stats.SCHEDULE);
+			}
+			if (opt.save != null) save(irList, renameResult, opt.save);
+			if (opt.renameOnly) {
+				if (stats != null) stats.start(Stats.EMIT);
+				renameResult.printVR(irList, code);
+				code.flush();
+			} else {
+				// Allocation phase
+				if (stats != null) {
+					stats.k = opt.k;
+					stats.start(Stats.ALLOCATE);
+				}
+				if (opt.color) {
+					Colorer.allocate(irList, opt.k, renameResult, stats);
+				} else {
+					Allocator.allocate(irList, opt.k, renameResult, opt.threads, stats, opt.exact);
+				}
+				if (stats != null) {
+					stats.stop(Stats.ALLOCATE);
+					stats.allocated();
+				}
+				if (opt.schedule == SCHEDULE_POST) { // on the physical registers, spill code included
+					if (stats != null) stats.start(Stats.SCHEDULE);
+					irList.vr = irList.nu = null; // not needed past allocation, make room
+					IRList flat = Allocator.flatten(irList);
+					irList = null;
+					Scheduler.schedule(flat, opt.latency);
+					if (stats != null) {
+						stats.stop(Stats.SCHEDULE);
+						stats.start(Stats.EMIT);
+					}
+					flat.printCode(code);
+				} else {
+					if (stats != null) stats.start(Stats.EMIT);
+					Allocator.printAllocated(irList, code);
+				}
+			}
+			if (entry != null) entry.commit(out);
+			done = true;
+		} finally {
+			if (entry != null && !done) entry.abandon();
+		}
+		if (stats != null) {
+			out.flush();
+			stats.stop(Stats.EMIT);
+			if (showStats) stats.print(err);
 		}
-		
+		return true;
+	}
 
-		
+	private static final PrintStream NO_ERRORS = new PrintStream(new OutputStream() {
+		public void write(int b) { }
+		public void write(byte[] b, int off, int len) { }
+	});
+
+	// Block from a -save file, or from stdin for "-"; null if the file can't be
+	// read. A file that isn't a valid one is an IOException
+	private static IRFile load(String path, Env env) throws IOException {
+		if (path.equals("-")) {
+			final byte[] input = env.stdin();
+			return IRFile.read(Channels.newChannel(new ByteArrayInputStream(input)), input.length);
+		}
+		File f = env.file(path);
+		if (!f.canRead()) return null;
+		FileInputStream in = new FileInputStream(f);
+		try {
+			return IRFile.read(in.getChannel(), in.getChannel().size());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void save(IRList ir, Renamer rn, File to) throws IOException {
+		FileOutputStream file = new FileOutputStream(to);
+		try {
+			IRFile.write(ir, rn, file.getChannel());
+		} finally {
+			file.close();
+		}
+	}
+
+	// Scanner over path, or over stdin for "-"; null if the file can't be read
+	private static Scanner open(String path, Env env, PrintStream err) throws IOException {
+		if (path.equals("-")) return new Scanner(ByteBuffer.wrap(env.stdin()), err);
+		File f = env.file(path);
+		if (!f.canRead()) return null;
+		return new Scanner(f.getPath(), err);
+	}
+
+	// Result of one input in batch mode, held until its turn to be written
+	private static final class Result {
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		boolean ok;
+	}
+
+	// Compile every input on a pool of `threads` workers. Results are written
+	// in input order: to stdout behind a "// <path>" line, or to <outDir>/<name>,
+	// with each error line prefixed by its path. At most 2 * threads results
+	// are held in memory at once
+	private static int batch(final List<String> paths, final Env env, Options opt, String outName,
+			Emitter out, PrintStream err) throws IOException {
+		final Options each = opt.oneThread();
+		final File outDir = (outName == null) ? null : env.file(outName);
+		if (outDir != null) { // each output is named after its input's file name, so those must differ
+			final Map<String, String> named = new HashMap<>();
+			for (String path : paths) {
+				final String other = named.put(new File(path).getName(), path);
+				if (other != null) {
+					err.println("ERROR: -o would write " + other + " and " + path + " to the same file.");
+					return 1;
+				}
+			}
+		}
+		if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs()) {
+			err.println("ERROR: cannot create output directory: " + outDir);
+			return 1;
+		}
+		final int threads = opt.threads;
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final List<Future<Result>> pending = new ArrayList<>();
+		int failed = 0;
+		try {
+			int next = 0;
+			for (int i = 0; i < paths.size(); i++) {
+				// Keep the window full, then wait for input i
+				while (next < paths.size() && next - i < 2 * threads) {
+					final String path = paths.get(next++);
+					pending.add(pool.submit(new Callable<Result>() {
+						public Result call() throws IOException {
+							return compileOne(path, env, each, outDir);
+						}
+					}));
+				}
+				Result r;
+				try {
+					r = pending.get(i).get();
+				} catch (ExecutionException e) {
+					r = new Result();
+					new PrintStream(r.errors, true).println("ERROR: " + e.getCause());
+				}
+				pending.set(i, null);
+
+				String path = paths.get(i);
+				if (!r.ok) failed++;
+				if (outDir == null && r.ok) {
+					out.text("// ").text(path).nl();
+					out.bytes(r.code.toByteArray(), 0, r.code.size());
+				}
+				if (r.errors.size() > 0) {
+					out.flush();
+					for (String line : r.errors.toString().split("\n")) err.println(path + ": " + line);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			err.println("ERROR: interrupted");
+			return 1;
+		} finally {
+			pool.shutdownNow();
+		}
+		return failed == 0 ? 0 : 1;
 	}
-}
 
+	private static Result compileOne(String path, Env env, Options opt, File outDir) throws IOException {
+		Result r = new Result();
+		PrintStream err = new PrintStream(r.errors, true);
+		if (outDir == null) {
+			Emitter code = new Emitter(r.code, 1 << 13);
+			r.ok = compile(path, env, opt, code, err);
+			code.flush();
+		} else {
+			File target = new File(outDir, new File(path).getName());
+			try (FileOutputStream fos = new FileOutputStream(target)) {
+				Emitter code = new Emitter(fos.getChannel());
+				r.ok = compile(path, env, opt, code, err);
+				code.flush();
+			} catch (IOException e) {
+				err.println("ERROR: I/O error: " + e.getMessage());
+				r.ok = false;
+			}
+			if (!r.ok) target.delete(); // no partial output for a failed input
+		}
+		return r;
+	}
+
+	// Expand the input arguments: a directory stands for the regular files in
+	// it (sorted by name), "@file" for the paths listed in file, one per line
+	private static List<String> expandInputs(String[] specs, Env env, PrintStream err) throws IOException {
+		List<String> paths = new ArrayList<>();
+		for (String spec : specs) {
+			if (spec.startsWith("@")) {
+				File manifest = env.file(spec.substring(1));
+				if (!manifest.canRead()) {
+					err.println("ERROR: cannot open manifest: " + spec.substring(1));
+					return null;
+				}
+				try (BufferedReader br = new BufferedReader(new FileReader(manifest))) {
+					String line;
+					while ((line = br.readLine()) != null) {
+						line = line.trim();
+						if (!line.isEmpty() && !line.startsWith("#")) paths.add(line);
+					}
+				}
+			} else if (env.file(spec).isDirectory()) {
+				File[] files = env.file(spec).listFiles();
+				if (files == null) {
+					err.println("ERROR: cannot list directory: " + spec);
+					return null;
+				}
+				Arrays.sort(files);
+				for (File f : files) {
+					if (f.isFile()) paths.add(new File(spec, f.getName()).getPath());
+				}
+			} else {
+				paths.add(spec);
+			}
+		}
+		return paths;
+	}
+}